@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# Hogwarts Archive - Benchmark Script
+# Usage: ./bench.sh <BenchmarkClass> [args...]
+
+GREEN='\033[0;32m'
+YELLOW='\033[1;33m'
+NC='\033[0m' # No Color
+
+BENCHMARK=${1:-RentalThroughputBenchmark}
+shift
+
+mkdir -p out
+
+echo -e "${YELLOW}Compiling...${NC}"
+javac -d out src/*.java bench/*.java
+
+if [ $? -eq 0 ]; then
+    echo -e "${GREEN}✓ Compilation successful!${NC}"
+    echo ""
+    java -cp out "$BENCHMARK" "$@"
+else
+    echo "✗ Compilation failed!"
+    exit 1
+fi
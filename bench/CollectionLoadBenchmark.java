@@ -0,0 +1,33 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Measures ADD COLLECTION throughput on a generated catalog export.
+ *
+ * Usage: java -cp out CollectionLoadBenchmark [rows] [repeats]
+ */
+public class CollectionLoadBenchmark {
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File csv = File.createTempFile("collection", ".csv");
+        csv.deleteOnExit();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csv))) {
+            writer.write("serialNumber,title,inventor,type\n");
+            for (int i = 0; i < rows; i++) {
+                writer.write((100000 + i) + ",The Standard Book of Spells Grade " + (i % 7 + 1)
+                        + ",Inventor " + (i % 5000) + ",Type " + (i % 40) + "\n");
+            }
+        }
+        System.out.println("rows=" + rows + " file=" + csv.length() / (1024 * 1024) + " MiB");
+
+        for (int i = 1; i <= repeats; i++) {
+            Archive archive = new Archive();
+            String message = archive.addCollectionFromCSV(csv.getPath());
+            System.out.println("run " + i + ": " + message + " " + archive.getLastCollectionLoad());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares lookup latency and heap footprint of IntMap against HashMap<Integer, V>
+ * for dense six-digit keys such as serial and student numbers.
+ *
+ * Usage: java -cp out IntMapBenchmark [entries] [rounds]
+ */
+public class IntMapBenchmark {
+    private static final int FIRST_KEY = 100000;
+    private static final int LOOKUPS = 10_000_000;
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Object[] values = new Object[entries];
+        for (int i = 0; i < entries; i++) {
+            values[i] = new Object();
+        }
+        int[] probes = new int[LOOKUPS];
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            probes[i] = FIRST_KEY + random.nextInt(entries);
+        }
+
+        System.out.println("entries=" + entries + " lookups/round=" + LOOKUPS);
+
+        long before = usedHeap();
+        Map<Integer, Object> hashMap = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            hashMap.put(FIRST_KEY + i, values[i]);
+        }
+        long hashMapBytes = usedHeap() - before;
+
+        before = usedHeap();
+        IntMap<Object> intMap = new IntMap<>();
+        for (int i = 0; i < entries; i++) {
+            intMap.put(FIRST_KEY + i, values[i]);
+        }
+        long intMapBytes = usedHeap() - before;
+
+        System.out.println("HashMap heap: " + hashMapBytes / 1024 + " KiB");
+        System.out.println("IntMap heap:  " + intMapBytes / 1024 + " KiB");
+
+        for (int round = 1; round <= rounds; round++) {
+            long start = System.nanoTime();
+            int hits = 0;
+            for (int key : probes) {
+                if (hashMap.get(key) != null) {
+                    hits++;
+                }
+            }
+            double hashMapNanos = (double) (System.nanoTime() - start) / LOOKUPS;
+
+            start = System.nanoTime();
+            for (int key : probes) {
+                if (intMap.get(key) != null) {
+                    hits++;
+                }
+            }
+            double intMapNanos = (double) (System.nanoTime() - start) / LOOKUPS;
+
+            System.out.printf("round %d: HashMap %.1f ns/get, IntMap %.1f ns/get (hits=%d)%n",
+                    round, hashMapNanos, intMapNanos, hits);
+        }
+
+        // Keep both maps reachable until the end of the measurements
+        System.out.println(hashMap.size() + intMap.size() == 2 * entries ? "done" : "size mismatch");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures rent/relinquish throughput of a shared Archive at 1 to 64 threads.
+ *
+ * Usage: java -cp out RentalThroughputBenchmark [books] [students] [seconds] [rentPercent] [fsync]
+ *
+ * With fsync set to always, interval or never, every operation is journaled to
+ * a temporary file with that sync policy.
+ */
+public class RentalThroughputBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final int FIRST_SERIAL = 100000;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int students = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int rentPercent = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        Journal.SyncPolicy policy = args.length > 4 ? Journal.SyncPolicy.valueOf(args[4].toUpperCase()) : null;
+
+        System.out.println("books=" + books + " students=" + students
+                + " seconds=" + seconds + " rent%=" + rentPercent + " fsync=" + policy);
+        System.out.println("threads,ops/s,successes/s");
+
+        for (int threads : THREAD_COUNTS) {
+            File journal = null;
+            Archive archive = new Archive();
+            if (policy != null) {
+                journal = File.createTempFile("rental", ".journal");
+                journal.delete();
+                archive.openJournal(journal.getPath(), policy, 10);
+            }
+            populate(archive, books, students);
+            run(archive, threads, books, students, 1, rentPercent); // warm-up
+            long[] result = run(archive, threads, books, students, seconds, rentPercent);
+            System.out.println(threads + "," + result[0] / seconds + "," + result[1] / seconds);
+            if (journal != null) {
+                archive.closeJournal();
+                journal.delete();
+            }
+        }
+    }
+
+    private static void populate(Archive archive, int books, int students) {
+        for (int i = 0; i < books; i++) {
+            archive.addSpellbook(new SpellBook(FIRST_SERIAL + i, "Title " + (i % 1000),
+                    "Inventor " + (i % 100), "Type " + (i % 10)));
+        }
+        for (int i = 0; i < students; i++) {
+            archive.addStudent("Student " + i);
+        }
+    }
+
+    /**
+     * Runs the rent/relinquish mix for a fixed time.
+     * @return Total operations and successful operations
+     */
+    private static long[] run(Archive archive, int threads, int books, int students,
+                              int seconds, int rentPercent) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        LongAdder successes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                // Each thread remembers its own loans so relinquishes usually succeed
+                List<int[]> loans = new ArrayList<>();
+                long ops = 0;
+                long ok = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline) {
+                    String result;
+                    if (loans.isEmpty() || random.nextInt(100) < rentPercent) {
+                        int student = 100000 + random.nextInt(students);
+                        int serial = FIRST_SERIAL + random.nextInt(books);
+                        result = archive.rentSpellbook(student, serial);
+                        if (result.equals("Success.")) {
+                            loans.add(new int[] {student, serial});
+                        }
+                    } else {
+                        int[] loan = loans.remove(loans.size() - 1);
+                        result = archive.relinquishSpellbook(loan[0], loan[1]);
+                    }
+                    ops++;
+                    if (result.equals("Success.")) {
+                        ok++;
+                    }
+                }
+                for (int[] loan : loans) {
+                    archive.relinquishSpellbook(loan[0], loan[1]);
+                }
+                operations.add(ops);
+                successes.add(ok);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new long[] {operations.sum(), successes.sum()};
+    }
+}
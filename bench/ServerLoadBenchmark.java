@@ -0,0 +1,158 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load client for the TCP line protocol of ArchiveServer. Each connection
+ * sends windows of pipelined RENT and RELINQUISH commands and waits for all
+ * their responses; the latency of a command is the time from sending its
+ * window to reading its response.
+ *
+ * Usage: java -cp out ServerLoadBenchmark [connections] [seconds] [pipeline] [port]
+ *
+ * Without a port, an in-process server on a free port is started with a
+ * generated Archive of 100000 spellbooks and 10000 students.
+ */
+public class ServerLoadBenchmark {
+    private static final int FIRST_SERIAL = 100000;
+    private static final int BOOKS = 100000;
+    private static final int STUDENTS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int pipeline = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        ArchiveServer server = null;
+        int port;
+        if (args.length > 3) {
+            port = Integer.parseInt(args[3]);
+        } else {
+            Archive archive = new Archive();
+            List<SpellBook> catalog = new ArrayList<>(BOOKS);
+            for (int i = 0; i < BOOKS; i++) {
+                catalog.add(new SpellBook(FIRST_SERIAL + i, "Title " + (i % 1000),
+                        "Inventor " + (i % 100), "Type " + (i % 10)));
+            }
+            archive.addSpellbooks(catalog);
+            for (int i = 0; i < STUDENTS; i++) {
+                archive.addStudent("Student " + i);
+            }
+            server = new ArchiveServer(archive);
+            port = server.startTcp(0);
+        }
+
+        System.out.println("connections=" + connections + " seconds=" + seconds + " pipeline=" + pipeline);
+        run(port, connections, 1, pipeline); // warm-up
+        long[] latencies = run(port, connections, seconds, pipeline);
+        Arrays.sort(latencies);
+        System.out.println("commands/s=" + latencies.length / seconds
+                + " p50=" + percentile(latencies, 0.50) / 1000 + " us"
+                + " p99=" + percentile(latencies, 0.99) / 1000 + " us"
+                + " max=" + (latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000) + " us");
+
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    /**
+     * Runs every connection for a fixed time.
+     * @return The latency of every command answered, in nanoseconds
+     */
+    private static long[] run(int port, int connections, int seconds, int pipeline) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] results = new long[connections][];
+        CountDownLatch done = new CountDownLatch(connections);
+
+        for (int c = 0; c < connections; c++) {
+            int index = c;
+            Thread client = new Thread(() -> {
+                try {
+                    results[index] = drive(port, deadline, pipeline);
+                } catch (IOException e) {
+                    System.err.println("Connection failed: " + e.getMessage());
+                    results[index] = new long[0];
+                } finally {
+                    done.countDown();
+                }
+            });
+            client.start();
+        }
+        done.await();
+
+        int total = 0;
+        for (long[] result : results) {
+            total += result.length;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (long[] result : results) {
+            System.arraycopy(result, 0, latencies, offset, result.length);
+            offset += result.length;
+        }
+        return latencies;
+    }
+
+    private static long[] drive(int port, long deadline, int pipeline) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Remember this connection's loans so relinquishes usually succeed
+        List<int[]> loans = new ArrayList<>();
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            socket.setTcpNoDelay(true);
+            StringBuilder window = new StringBuilder();
+            while (System.nanoTime() < deadline) {
+                window.setLength(0);
+                for (int i = 0; i < pipeline; i++) {
+                    if (loans.isEmpty() || random.nextBoolean()) {
+                        int student = 100000 + random.nextInt(STUDENTS);
+                        int serial = FIRST_SERIAL + random.nextInt(BOOKS);
+                        window.append("RENT ").append(student).append(' ').append(serial).append('\n');
+                        loans.add(new int[]{student, serial});
+                    } else {
+                        int[] loan = loans.remove(random.nextInt(loans.size()));
+                        window.append("RELINQUISH ").append(loan[0]).append(' ').append(loan[1]).append('\n');
+                    }
+                }
+                long sent = System.nanoTime();
+                out.write(window.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                for (int i = 0; i < pipeline; i++) {
+                    String line;
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        // Skip the command output
+                    }
+                    if (line == null) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - sent;
+                }
+            }
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+}
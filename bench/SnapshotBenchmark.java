@@ -0,0 +1,66 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures SAVE SNAPSHOT and snapshot restore time for a generated Archive
+ * with active loans and rental histories. Restores are timed after the
+ * generated Archive is dropped, so they do not share the heap with it, and
+ * each restored Archive is dropped before the next.
+ *
+ * Usage: java -cp out SnapshotBenchmark [books] [students] [repeats]
+ */
+public class SnapshotBenchmark {
+    private static final int FIRST_SERIAL = 100000;
+
+    public static void main(String[] args) throws IOException {
+        int books = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int students = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Archive archive = new Archive();
+        List<SpellBook> catalog = new ArrayList<>(books);
+        for (int i = 0; i < books; i++) {
+            catalog.add(new SpellBook(FIRST_SERIAL + i, "The Standard Book of Spells Grade " + (i % 7 + 1),
+                    "Inventor " + (i % 5000), "Type " + (i % 40)));
+        }
+        archive.addSpellbooks(catalog);
+        for (int i = 0; i < students; i++) {
+            archive.addStudent("Student " + i);
+        }
+        // Five rentals per student, two of them returned
+        Random random = new Random(42);
+        for (int i = 0; i < students * 5; i++) {
+            int student = 100000 + random.nextInt(students);
+            int serial = FIRST_SERIAL + random.nextInt(books);
+            if (archive.rentSpellbook(student, serial).equals("Success.") && i % 5 < 2) {
+                archive.relinquishSpellbook(student, serial);
+            }
+        }
+
+        File snapshot = File.createTempFile("archive", ".snapshot");
+        snapshot.deleteOnExit();
+        System.out.println("books=" + books + " students=" + students);
+
+        for (int i = 1; i <= repeats; i++) {
+            long start = System.nanoTime();
+            String message = archive.saveSnapshot(snapshot.getPath());
+            long saved = System.nanoTime() - start;
+            System.out.println("save " + i + ": " + message + " " + saved / 1_000_000 + " ms, "
+                    + snapshot.length() / (1024 * 1024) + " MiB");
+        }
+        archive = null;
+
+        for (int i = 1; i <= repeats; i++) {
+            System.gc();
+            long start = System.nanoTime();
+            Archive restored = new Archive();
+            restored.loadSnapshot(snapshot.getPath());
+            long loaded = System.nanoTime() - start;
+            System.out.println("restore " + i + ": " + loaded / 1_000_000 + " ms ("
+                    + restored.getRentedCount() + " rented)");
+        }
+    }
+}
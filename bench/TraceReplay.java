@@ -0,0 +1,364 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a command trace, such as one written by WorkloadGenerator, and
+ * reports throughput, latency percentiles and the heap high-water mark.
+ *
+ * The leading ADD commands are run first on one thread as setup. The rest of
+ * the trace is split between the threads by student number, so each
+ * student's rentals and returns stay in trace order; commands without a
+ * student are dealt out in turn.
+ *
+ * Latencies are also broken down by command, since a rare catalog-wide
+ * query can dominate the tail.
+ *
+ * In cli mode every thread runs the commands through its own HogwartsArchive
+ * session, including parsing and formatting, with the output discarded. In
+ * archive mode the commands are parsed before the clock starts and call the
+ * Archive methods directly.
+ *
+ * Usage: java -cp out TraceReplay <trace> [threads] [cli|archive]
+ */
+public class TraceReplay {
+    private static final int HEAP_SAMPLE_MILLIS = 5;
+
+    static volatile long sink; // keeps Archive results alive in archive mode
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java -cp out TraceReplay <trace> [threads] [cli|archive]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        boolean cli = args.length <= 2 || args[2].equalsIgnoreCase("cli");
+
+        List<String> setup = new ArrayList<>();
+        List<List<String>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        long commands = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            int turn = 0;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (commands == 0 && line.toUpperCase().startsWith("ADD ")) {
+                    setup.add(line);
+                    continue;
+                }
+                int student = studentOf(line);
+                int partition = student >= 0 ? student % threads : turn++ % threads;
+                partitions.get(partition).add(line);
+                commands++;
+            }
+        }
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        Archive archive = new Archive();
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        long start = System.nanoTime();
+        HogwartsArchive setupSession = new HogwartsArchive(archive, discard);
+        for (String command : setup) {
+            setupSession.processCommand(command);
+        }
+        long setupNanos = System.nanoTime() - start;
+        System.out.println("mode=" + (cli ? "cli" : "archive") + " threads=" + threads);
+        System.out.println("setup: " + setup.size() + " commands in " + setupNanos / 1_000_000 + " ms, "
+                + archive.getAvailableCount() + " spellbooks, heap " + heap.peak() / (1024 * 1024) + " MiB");
+
+        Runnable[] workers = new Runnable[threads];
+        long[][] latencies = new long[threads][];
+        byte[][] kinds = new byte[threads][];
+        List<String> kindNames = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<String> lines = partitions.get(t);
+            kinds[t] = new byte[lines.size()];
+            for (int i = 0; i < kinds[t].length; i++) {
+                String name = kindOf(lines.get(i));
+                int kind = kindNames.indexOf(name);
+                if (kind < 0) {
+                    kind = kindNames.size();
+                    kindNames.add(name);
+                }
+                kinds[t][i] = (byte) kind;
+            }
+        }
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            List<String> lines = partitions.get(t);
+            if (cli) {
+                HogwartsArchive session = new HogwartsArchive(archive, discard);
+                workers[t] = () -> latencies[index] = replay(lines, session, ready, go);
+            } else {
+                Op[] ops = new Op[lines.size()];
+                for (int i = 0; i < ops.length; i++) {
+                    ops[i] = Op.parse(lines.get(i));
+                }
+                workers[t] = () -> latencies[index] = replay(ops, archive, ready, go);
+            }
+        }
+
+        List<Thread> running = new ArrayList<>();
+        for (Runnable worker : workers) {
+            Thread thread = new Thread(worker);
+            thread.start();
+            running.add(thread);
+        }
+        ready.await();
+        start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        heap.stopSampling();
+
+        long[] all = new long[(int) commands];
+        int offset = 0;
+        for (long[] part : latencies) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        Arrays.sort(all);
+        System.out.println("replay: " + commands + " commands in " + elapsed / 1_000_000 + " ms ("
+                + (elapsed == 0 ? commands : commands * 1_000_000_000L / elapsed) + " commands/s)");
+        System.out.println("latency us: p50=" + micros(all, 0.50) + " p90=" + micros(all, 0.90)
+                + " p99=" + micros(all, 0.99) + " p99.9=" + micros(all, 0.999)
+                + " max=" + (all.length == 0 ? 0 : all[all.length - 1] / 1000));
+        for (int kind = 0; kind < kindNames.size(); kind++) {
+            int count = 0;
+            for (byte[] part : kinds) {
+                for (byte k : part) {
+                    count += k == kind ? 1 : 0;
+                }
+            }
+            long[] mine = new long[count];
+            long total = 0;
+            int n = 0;
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < kinds[t].length; i++) {
+                    if (kinds[t][i] == kind) {
+                        mine[n++] = latencies[t][i];
+                        total += latencies[t][i];
+                    }
+                }
+            }
+            Arrays.sort(mine);
+            System.out.println("  " + kindNames.get(kind) + ": " + count + " commands, " + total / 1_000_000
+                    + " ms total, p50=" + micros(mine, 0.50) + " p99=" + micros(mine, 0.99)
+                    + " max=" + micros(mine, 1.0) + " us");
+        }
+        System.out.println("heap high-water: " + heap.peak() / (1024 * 1024) + " MiB");
+    }
+
+    /**
+     * Names a command for the latency breakdown: its first word, or its first
+     * two for LIST, NUMBER and SPELLBOOK HISTORY style commands.
+     */
+    private static String kindOf(String line) {
+        String[] parts = line.toUpperCase().split("\\s+", 3);
+        boolean twoWords = parts.length > 1 && (parts[0].equals("LIST") || parts[0].equals("NUMBER")
+                || parts[0].equals("ADD") || parts[1].equals("ALL") || parts[1].equals("ATOMIC")
+                || parts[1].equals("HISTORY") || parts[1].equals("SPELLBOOKS"));
+        return twoWords ? parts[0] + " " + parts[1] : parts[0];
+    }
+
+    private static long[] replay(List<String> lines, HogwartsArchive session, CountDownLatch ready, CountDownLatch go) {
+        long[] latencies = new long[lines.size()];
+        await(ready, go);
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            session.processCommand(lines.get(i));
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private static long[] replay(Op[] ops, Archive archive, CountDownLatch ready, CountDownLatch go) {
+        long[] latencies = new long[ops.length];
+        long results = 0;
+        await(ready, go);
+        for (int i = 0; i < ops.length; i++) {
+            long start = System.nanoTime();
+            results += ops[i].run(archive);
+            latencies[i] = System.nanoTime() - start;
+        }
+        sink += results;
+        return latencies;
+    }
+
+    private static void await(CountDownLatch ready, CountDownLatch go) {
+        ready.countDown();
+        try {
+            go.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long micros(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1000;
+    }
+
+    /**
+     * Gets the student a RENT or RELINQUISH command is for.
+     * @return The student number, or -1 for other commands
+     */
+    private static int studentOf(String line) {
+        String[] parts = line.split("\\s+");
+        String command = parts[0].toUpperCase();
+        int index = command.equals("RELINQUISH") && parts.length > 1 && parts[1].equalsIgnoreCase("ALL") ? 2 : 1;
+        if ((command.equals("RENT") || command.equals("RELINQUISH")) && parts.length > index) {
+            try {
+                return Integer.parseInt(parts[index]);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A trace command parsed for direct Archive calls.
+     */
+    private static class Op {
+        private static final int RENT = 0, RELINQUISH = 1, SPELLBOOK = 2, RANGE = 3, COPIES = 4,
+                TYPE = 5, COMMON = 6, ADD_STUDENT = 7, OTHER = 8;
+
+        final int kind;
+        final int first;
+        final int second;
+        final String text;
+        final List<Integer> students;
+
+        Op(int kind, int first, int second, String text, List<Integer> students) {
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+            this.text = text;
+            this.students = students;
+        }
+
+        static Op parse(String line) {
+            String[] parts = line.split("\\s+");
+            String command = parts[0].toUpperCase();
+            try {
+                switch (command) {
+                    case "RENT":
+                        return new Op(RENT, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), null, null);
+                    case "RELINQUISH":
+                        return new Op(RELINQUISH, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), null, null);
+                    case "SPELLBOOK":
+                        return new Op(SPELLBOOK, Integer.parseInt(parts[1]), 0, null, null);
+                    case "LIST":
+                        if (parts[1].equalsIgnoreCase("RANGE")) {
+                            return new Op(RANGE, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), null, null);
+                        }
+                        break;
+                    case "NUMBER":
+                        return new Op(COPIES, 0, 0, line.split("\\s+", 3)[2], null);
+                    case "TYPE":
+                        return new Op(TYPE, 0, 0, line.split("\\s+", 2)[1], null);
+                    case "COMMON":
+                        List<Integer> students = new ArrayList<>();
+                        for (int i = 1; i < parts.length; i++) {
+                            students.add(Integer.parseInt(parts[i]));
+                        }
+                        return new Op(COMMON, 0, 0, null, students);
+                    case "ADD":
+                        if (parts[1].equalsIgnoreCase("STUDENT")) {
+                            return new Op(ADD_STUDENT, 0, 0, line.split("\\s+", 3)[2], null);
+                        }
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // Malformed; skipped like the console skips it
+            }
+            return new Op(OTHER, 0, 0, null, null);
+        }
+
+        /** Runs the command and returns something derived from its result. */
+        long run(Archive archive) {
+            switch (kind) {
+                case RENT:
+                    return archive.rentSpellbook(first, second).length();
+                case RELINQUISH:
+                    return archive.relinquishSpellbook(first, second).length();
+                case SPELLBOOK:
+                    return archive.getSpellbook(first) == null ? 0 : 1;
+                case RANGE:
+                    return archive.getSpellbooksInRange(first, second).size();
+                case COPIES:
+                    return archive.getNumberOfCopies(text).size();
+                case TYPE:
+                    return archive.getSpellbooksByType(text).size();
+                case COMMON:
+                    return archive.findCommonSpellbooks(students).size();
+                case ADD_STUDENT:
+                    return archive.addStudent(text).getStudentNumber();
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * Samples used heap on a daemon thread and keeps the highest value seen.
+     */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+        private volatile boolean running = true;
+
+        HeapSampler() {
+            super("heap-sampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        }
+
+        long peak() {
+            sample();
+            return peak.get();
+        }
+
+        void stopSampling() {
+            running = false;
+        }
+    }
+}
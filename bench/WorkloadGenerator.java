@@ -0,0 +1,234 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates a large catalog and a command trace that replays against it.
+ *
+ * Titles, inventors and types are drawn from Zipf distributions, so a few
+ * titles have thousands of copies and most have a handful. Each title keeps
+ * one inventor and type across its copies, like a real print run.
+ *
+ * The trace is a plain command script, so it can also be run with
+ * HogwartsArchive --batch: ADD COLLECTION and one ADD STUDENT per student,
+ * then a mix of 45% RENT (popular titles and busy students more often),
+ * 35% RELINQUISH of outstanding loans, 10% SPELLBOOK, 5% LIST RANGE,
+ * 3% NUMBER COPIES, 1.8% COMMON and 0.2% TYPE.
+ *
+ * Usage: java -cp out WorkloadGenerator <directory> [books] [students] [commands] [skew] [seed]
+ */
+public class WorkloadGenerator {
+    private static final int FIRST_NUMBER = 100000;
+    private static final int TYPES = 40;
+
+    private static final String[] ADJECTIVES = {
+            "Advanced", "Ancient", "Practical", "Forbidden", "Essential", "Curious", "Elementary",
+            "Unabridged", "Illustrated", "Secret", "Modern", "Lesser", "Greater", "Hidden"
+    };
+    private static final String[] SUBJECTS = {
+            "Charms", "Potions", "Transfiguration", "Hexes", "Jinxes", "Curses", "Counter-Curses",
+            "Herbology", "Divination", "Runes", "Arithmancy", "Healing", "Enchantments", "Wards"
+    };
+    private static final String[] FIRST_NAMES = {
+            "Miranda", "Quentin", "Vindictus", "Hippocrates", "Harvey", "Emeric", "Eldritch",
+            "Bathilda", "Arsenius", "Phyllida", "Adalbert", "Newt", "Libatius", "Zygmunt"
+    };
+    private static final String[] LAST_NAMES = {
+            "Goshawk", "Trimble", "Viridian", "Smethwyck", "Ridgebit", "Switch", "Diggory",
+            "Bagshot", "Jigger", "Spore", "Waffling", "Scamander", "Borage", "Budge"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java -cp out WorkloadGenerator <directory> [books] [students] [commands] [skew] [seed]");
+            return;
+        }
+        Path directory = Paths.get(args[0]);
+        int books = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int students = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int commands = args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000;
+        double skew = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+
+        Files.createDirectories(directory);
+        Random random = new Random(seed);
+        Path catalogFile = directory.resolve("catalog.csv");
+        Catalog catalog = writeCatalog(catalogFile, books, skew, random);
+        writeTrace(directory.resolve("trace.txt"), catalogFile, catalog, students, commands, skew, random);
+
+        System.out.println(books + " spellbooks (" + catalog.titleCount + " titles, most copies "
+                + catalog.maxCopies() + ") in " + catalogFile);
+        System.out.println(students + " students and " + commands + " commands in " + directory.resolve("trace.txt"));
+    }
+
+    // ==================== Catalog ====================
+
+    /**
+     * The generated titles and the serial numbers of their copies.
+     */
+    private static class Catalog {
+        final int titleCount;
+        final String[] titles;
+        final int[] copyStart; // copies of title t are serials[copyStart[t] .. copyStart[t + 1])
+        final int[] serials;
+        final String[] types;
+
+        Catalog(int titleCount, String[] titles, int[] copyStart, int[] serials, String[] types) {
+            this.titleCount = titleCount;
+            this.titles = titles;
+            this.copyStart = copyStart;
+            this.serials = serials;
+            this.types = types;
+        }
+
+        int maxCopies() {
+            int max = 0;
+            for (int t = 0; t < titleCount; t++) {
+                max = Math.max(max, copyStart[t + 1] - copyStart[t]);
+            }
+            return max;
+        }
+    }
+
+    private static Catalog writeCatalog(Path file, int books, double skew, Random random) throws IOException {
+        int titleCount = Math.max(1, books / 20);
+        int inventorCount = Math.max(1, titleCount / 10);
+        Zipf titleDistribution = new Zipf(titleCount, skew);
+        Zipf inventorDistribution = new Zipf(inventorCount, skew);
+        Zipf typeDistribution = new Zipf(TYPES, skew);
+
+        String[] types = new String[TYPES];
+        for (int i = 0; i < TYPES; i++) {
+            types[i] = SUBJECTS[i % SUBJECTS.length] + (i < SUBJECTS.length ? "" : " " + (i / SUBJECTS.length + 1));
+        }
+        String[] titles = new String[titleCount];
+        String[] titleInventor = new String[titleCount];
+        String[] titleType = new String[titleCount];
+        for (int t = 0; t < titleCount; t++) {
+            titles[t] = ADJECTIVES[t % ADJECTIVES.length] + " " + SUBJECTS[(t / ADJECTIVES.length) % SUBJECTS.length]
+                    + " Volume " + (t / (ADJECTIVES.length * SUBJECTS.length) + 1);
+            int inventor = inventorDistribution.next(random);
+            titleInventor[t] = FIRST_NAMES[inventor % FIRST_NAMES.length] + " "
+                    + LAST_NAMES[(inventor / FIRST_NAMES.length) % LAST_NAMES.length]
+                    + (inventor < FIRST_NAMES.length * LAST_NAMES.length ? "" : " " + (inventor / (FIRST_NAMES.length * LAST_NAMES.length) + 1));
+            titleType[t] = types[typeDistribution.next(random)];
+        }
+
+        // Every title gets one copy, the rest follow the title distribution
+        int[] titleOf = new int[books];
+        int[] copies = new int[titleCount + 1];
+        for (int i = 0; i < books; i++) {
+            titleOf[i] = i < titleCount ? i : titleDistribution.next(random);
+            copies[titleOf[i]]++;
+        }
+        int[] copyStart = new int[titleCount + 1];
+        for (int t = 0; t < titleCount; t++) {
+            copyStart[t + 1] = copyStart[t] + copies[t];
+        }
+        int[] next = copyStart.clone();
+        int[] serials = new int[books];
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("serialNumber,title,inventor,type\n");
+            for (int i = 0; i < books; i++) {
+                int t = titleOf[i];
+                int serial = FIRST_NUMBER + i;
+                serials[next[t]++] = serial;
+                writer.write(serial + "," + titles[t] + "," + titleInventor[t] + "," + titleType[t] + "\n");
+            }
+        }
+        return new Catalog(titleCount, titles, copyStart, serials, types);
+    }
+
+    // ==================== Trace ====================
+
+    private static void writeTrace(Path file, Path catalogFile, Catalog catalog, int students, int commands,
+                                   double skew, Random random) throws IOException {
+        Zipf titleDistribution = new Zipf(catalog.titleCount, skew);
+        Zipf studentDistribution = new Zipf(students, skew);
+        int books = catalog.serials.length;
+        // Simulated loans, so most RELINQUISH commands name a book the student holds
+        long[] loans = new long[Math.min(books, students * 8)];
+        int loanCount = 0;
+        boolean[] rented = new boolean[books];
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("ADD COLLECTION " + catalogFile.toAbsolutePath() + "\n");
+            for (int i = 0; i < students; i++) {
+                writer.write("ADD STUDENT " + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                        + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + "\n");
+            }
+
+            for (int i = 0; i < commands; i++) {
+                int kind = random.nextInt(1000);
+                if (kind < 450 && loanCount < loans.length || kind < 800 && loanCount == 0) {
+                    int student = FIRST_NUMBER + studentDistribution.next(random);
+                    int t = titleDistribution.next(random);
+                    int serial = catalog.serials[catalog.copyStart[t]
+                            + random.nextInt(catalog.copyStart[t + 1] - catalog.copyStart[t])];
+                    writer.write("RENT " + student + " " + serial + "\n");
+                    if (!rented[serial - FIRST_NUMBER]) {
+                        rented[serial - FIRST_NUMBER] = true;
+                        loans[loanCount++] = (long) student << 32 | serial;
+                    }
+                } else if (kind < 800) {
+                    int index = random.nextInt(loanCount);
+                    long loan = loans[index];
+                    loans[index] = loans[--loanCount];
+                    int serial = (int) loan;
+                    rented[serial - FIRST_NUMBER] = false;
+                    writer.write("RELINQUISH " + (int) (loan >>> 32) + " " + serial + "\n");
+                } else if (kind < 900) {
+                    writer.write("SPELLBOOK " + (FIRST_NUMBER + random.nextInt(books)) + "\n");
+                } else if (kind < 950) {
+                    int from = FIRST_NUMBER + random.nextInt(books);
+                    writer.write("LIST RANGE " + from + " " + (from + random.nextInt(50)) + "\n");
+                } else if (kind < 980) {
+                    writer.write("NUMBER COPIES " + catalog.titles[titleDistribution.next(random)] + "\n");
+                } else if (kind < 982) {
+                    // Lists every spellbook of the type, so kept rare
+                    writer.write("TYPE " + catalog.types[random.nextInt(catalog.types.length)] + "\n");
+                } else {
+                    writer.write("COMMON " + (FIRST_NUMBER + studentDistribution.next(random)) + " "
+                            + (FIRST_NUMBER + studentDistribution.next(random)) + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples ranks 0..n-1 with probability proportional to 1 / (rank + 1)^skew
+     * by binary search over the cumulative weights.
+     */
+    private static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+        }
+
+        int next(Random random) {
+            double target = random.nextDouble() * cumulative[cumulative.length - 1];
+            int low = 0;
+            int high = cumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package hogwarts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ADD COLLECTION of a generated CSV export into an empty Archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddCollectionBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int books;
+
+    private Path csv;
+    private Archive archive;
+
+    @Setup(Level.Trial)
+    public void writeCollection() throws IOException {
+        csv = Files.createTempFile("collection", ".csv");
+        new CollectionWriter().write(csv, ArchiveState.generateCatalog(books));
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyArchive() {
+        archive = new Archive();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCollection() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    @Benchmark
+    public String addCollectionFromCSV() {
+        return archive.addCollectionFromCSV(csv.toString());
+    }
+}
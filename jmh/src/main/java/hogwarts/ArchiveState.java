@@ -0,0 +1,67 @@
+package hogwarts;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated Archive shared by the benchmarks of one trial.
+ *
+ * Spellbooks cycle through 1000 titles, 100 inventors and 10 types. The
+ * first HISTORY_STUDENTS students have each rented and returned a handful
+ * of the first thousand spellbooks, so COMMON queries find overlaps.
+ */
+@State(Scope.Benchmark)
+public class ArchiveState {
+    static final int FIRST_NUMBER = 100000;
+    static final int HISTORY_STUDENTS = 1000;
+    private static final int HISTORY_LENGTH = 8;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int books;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int students;
+
+    Archive archive;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        archive = new Archive();
+        archive.addSpellbooks(generateCatalog(books));
+        for (int i = 0; i < students; i++) {
+            archive.addStudent("Student " + i);
+        }
+
+        Random random = new Random(42);
+        int shelf = Math.min(books, 1000);
+        for (int i = 0; i < Math.min(students, HISTORY_STUDENTS); i++) {
+            for (int j = 0; j < HISTORY_LENGTH; j++) {
+                int serial = FIRST_NUMBER + random.nextInt(shelf);
+                if (archive.rentSpellbook(FIRST_NUMBER + i, serial).equals("Success.")) {
+                    archive.relinquishSpellbook(FIRST_NUMBER + i, serial);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates spellbooks with consecutive serial numbers.
+     * @param count The number of spellbooks
+     * @return The spellbooks in serial order
+     */
+    static List<SpellBook> generateCatalog(int count) {
+        List<SpellBook> catalog = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            catalog.add(new SpellBook(FIRST_NUMBER + i, "Title " + (i % 1000),
+                    "Inventor " + (i % 100), "Type " + (i % 10)));
+        }
+        return catalog;
+    }
+}
@@ -0,0 +1,33 @@
+package hogwarts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups of random spellbooks and students.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Benchmark
+    public SpellBook getSpellbook(ArchiveState state) {
+        return state.archive.getSpellbook(ArchiveState.FIRST_NUMBER + ThreadLocalRandom.current().nextInt(state.books));
+    }
+
+    @Benchmark
+    public Student getStudent(ArchiveState state) {
+        return state.archive.getStudent(ArchiveState.FIRST_NUMBER + ThreadLocalRandom.current().nextInt(state.students));
+    }
+}
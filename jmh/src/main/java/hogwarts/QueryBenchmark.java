@@ -0,0 +1,55 @@
+package hogwarts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalog-wide queries: LIST ALL, TYPE, NUMBER COPIES, SEARCH and COMMON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Benchmark
+    public List<SpellBook> getAllSpellbooks(ArchiveState state) {
+        return state.archive.getAllSpellbooks();
+    }
+
+    @Benchmark
+    public List<SpellBook> getSpellbooksByType(ArchiveState state) {
+        return state.archive.getSpellbooksByType("Type " + ThreadLocalRandom.current().nextInt(10));
+    }
+
+    @Benchmark
+    public Map<String, Integer> getNumberOfCopies(ArchiveState state) {
+        return state.archive.getNumberOfCopies();
+    }
+
+    @Benchmark
+    public TitleIndex.Page searchSpellbooks(ArchiveState state) {
+        // "title" matches every title; the number is a prefix of about one in ten
+        return state.archive.searchSpellbooks("title " + ThreadLocalRandom.current().nextInt(100), 0, 20);
+    }
+
+    @Benchmark
+    public List<SpellBook> findCommonSpellbooks(ArchiveState state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int historyStudents = Math.min(state.students, ArchiveState.HISTORY_STUDENTS);
+        int first = ArchiveState.FIRST_NUMBER + random.nextInt(historyStudents);
+        int second = ArchiveState.FIRST_NUMBER + random.nextInt(historyStudents);
+        return state.archive.findCommonSpellbooks(List.of(first, second));
+    }
+}
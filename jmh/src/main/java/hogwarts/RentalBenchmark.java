@@ -0,0 +1,34 @@
+package hogwarts;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A random student renting and returning a random spellbook. The pair keeps
+ * the Archive in the same state between invocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RentalBenchmark {
+
+    @Benchmark
+    public void rentAndRelinquish(ArchiveState state, Blackhole blackhole) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int student = ArchiveState.FIRST_NUMBER + random.nextInt(state.students);
+        int serial = ArchiveState.FIRST_NUMBER + random.nextInt(state.books);
+        blackhole.consume(state.archive.rentSpellbook(student, serial));
+        blackhole.consume(state.archive.relinquishSpellbook(student, serial));
+    }
+}
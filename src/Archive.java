@@ -1,19 +1,120 @@
 import java.io.*;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Manages the collection of students and spellbooks in the Hogwarts Archive.
+ *
+ * All methods are safe to call from multiple threads. Rentals take no Archive
+ * lock: a spellbook is claimed with a compare-and-set on its renter and each
+ * student guards its own loans, so rentals of different books never contend.
+ * Adding spellbooks is serialized by a catalog lock and registering students
+ * by a student lock. A snapshot holds those two only while it marks where it
+ * starts; rentals carry on while it copies, and a change made after the mark
+ * first saves the prior state of its student for the snapshot.
  */
 public class Archive {
-    private Map<Integer, Student> students; // studentNumber -> Student
-    private Map<Integer, SpellBook> spellbooks; // serialNumber -> SpellBook
-    private int nextStudentNumber;
+    private static final int MAX_CSV_INDEXES = 8;
+
+    // Per-item result codes of the batch rental operations
+    public static final byte SUCCESS = 0;
+    public static final byte NO_STUDENTS = 1;
+    public static final byte NO_SUCH_STUDENT = 2;
+    public static final byte NO_SPELLBOOKS = 3;
+    public static final byte NO_SUCH_SPELLBOOK = 4;
+    public static final byte UNAVAILABLE = 5;
+    public static final byte NOT_RETURNABLE = 6;
+    public static final byte NOT_APPLIED = 7; // an all-or-nothing batch failed on another item
+
+    // Result messages of the String-returning operations that report a failure
+    private static final Set<String> ERROR_RESULTS = Set.of(
+            "Error reading file.", "Error writing file.", "No spellbooks in system.", "No students in system.",
+            "No such collection.", "No such file.", "No such spellbook in file.", "No such spellbook in system.",
+            "No such student in system.", "Spellbook already exists in system.",
+            "Spellbook is currently unavailable.", "Unable to return spellbook.");
+
+    private static final String[] RESULT_MESSAGES = {
+            "Success.",
+            "No students in system.",
+            "No such student in system.",
+            "No spellbooks in system.",
+            "No such spellbook in system.",
+            "Spellbook is currently unavailable.",
+            "Unable to return spellbook.",
+            "Not applied."
+    };
+
+    private IntMap<Student> students; // studentNumber -> Student
+    private IntMap<SpellBook> spellbookLookup; // serialNumber -> SpellBook, for point lookups
+    private NavigableMap<Integer, SpellBook> spellbooks; // serialNumber -> SpellBook, in serial order
+    private List<SpellBook> spellbooksByOrdinal; // ordinal -> SpellBook, for history queries
+    private SymbolIndex typeIndex; // type code -> sorted serial numbers and rented count
+    private SymbolIndex inventorIndex; // inventor code -> sorted serial numbers
+    private NavigableMap<String, NavigableMap<Integer, Integer>> copyCounts; // title -> inventor code -> number of copies
+    private TitleIndex titleIndex; // title words -> spellbooks, guarded by catalogLock
+    private NavigableMap<Integer, Boolean> availableSerials; // serial numbers of spellbooks on the shelf, as keys
+    private AtomicInteger rentedCount;
+    private LongAdder historyEntries; // completed loans, each in one student's and one spellbook's history
+    private AtomicLong catalogVersion; // bumped after spellbooks are added
+    private LongAdder loanVersion; // bumped after a spellbook's renter changes
+    private AtomicInteger nextStudentNumber;
+
+    private ReadWriteLock catalogLock; // guards adding spellbooks and spellbooksByOrdinal
+    private Object studentLock; // serializes student registrations with the start of a snapshot
+    private Lock captureLock; // one snapshot copy at a time
+    private volatile Capture capture; // the snapshot being copied, null if none
+    private volatile CollectionLoader.Result lastCollectionLoad;
+    private Map<Path, CsvOffsetIndex> csvIndexes; // CSV file -> serial number index, least recently used first
+    private CollectionWriter collectionWriter;
+    private volatile Journal journal; // null unless a journal is open
+    private Journal.Position restoredPosition; // journal position of the loaded snapshot, null if none
 
     public Archive() {
-        this.students = new HashMap<>();
-        this.spellbooks = new HashMap<>();
-        this.nextStudentNumber = 100000;
+        this.students = new IntMap<>();
+        this.spellbookLookup = new IntMap<>();
+        this.spellbooks = new ConcurrentSkipListMap<>();
+        this.spellbooksByOrdinal = new ArrayList<>();
+        this.typeIndex = new SymbolIndex(SpellBook.TYPES);
+        this.inventorIndex = new SymbolIndex(SpellBook.INVENTORS);
+        this.copyCounts = new ConcurrentSkipListMap<>();
+        this.titleIndex = new TitleIndex();
+        this.availableSerials = new ConcurrentSkipListMap<>();
+        this.rentedCount = new AtomicInteger();
+        this.historyEntries = new LongAdder();
+        this.catalogVersion = new AtomicLong();
+        this.loanVersion = new LongAdder();
+        this.nextStudentNumber = new AtomicInteger(100000);
+        this.catalogLock = new ReentrantReadWriteLock();
+        this.studentLock = new Object();
+        this.captureLock = new ReentrantLock();
+        this.collectionWriter = new CollectionWriter();
+        this.csvIndexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, CsvOffsetIndex> eldest) {
+                return size() > MAX_CSV_INDEXES;
+            }
+        };
     }
 
     // ==================== Student Operations ====================
@@ -24,11 +125,35 @@ public class Archive {
      * @return The new student object
      */
     public Student addStudent(String name) {
-        Student student = new Student(nextStudentNumber++, name);
-        students.put(student.getStudentNumber(), student);
+        Journal journal = this.journal;
+        Student student;
+        long sequence = 0;
+        synchronized (studentLock) {
+            int studentNumber = nextStudentNumber.getAndIncrement();
+            if (journal != null) {
+                sequence = journal.logAddStudent(studentNumber, name);
+            }
+            student = new Student(studentNumber, name);
+            students.put(studentNumber, student);
+        }
+        commit(journal, sequence);
         return student;
     }
 
+    /**
+     * Adds a student with a known student number, when replaying a journal.
+     * Later students are numbered after it. A student who already exists is
+     * kept with their loans and history.
+     * @param studentNumber The student number
+     * @param name The student's name
+     */
+    void restoreStudent(int studentNumber, String name) {
+        if (students.get(studentNumber) == null) {
+            students.put(studentNumber, new Student(studentNumber, name));
+        }
+        nextStudentNumber.accumulateAndGet(studentNumber + 1, Math::max);
+    }
+
     /**
      * Gets a student by student number.
      * @param studentNumber The student number
@@ -54,20 +179,321 @@ public class Archive {
      * @return true if added, false if serial number already exists
      */
     public boolean addSpellbook(SpellBook spellbook) {
-        if (spellbooks.containsKey(spellbook.getSerialNumber())) {
+        Lock lock = catalogLock.writeLock();
+        lock.lock();
+        boolean added;
+        try {
+            added = insertSpellbook(spellbook);
+        } finally {
+            lock.unlock();
+        }
+        if (added) {
+            commitAll();
+        }
+        return added;
+    }
+
+    /**
+     * Adds a batch of spellbooks under a single acquisition of the catalog lock.
+     * Spellbooks whose serial number already exists are skipped, so the result
+     * is the same as calling addSpellbook for each one in order.
+     * @param batch The spellbooks to add
+     * @return The number of spellbooks added
+     */
+    public int addSpellbooks(List<SpellBook> batch) {
+        int added = 0;
+        Lock lock = catalogLock.writeLock();
+        lock.lock();
+        try {
+            for (SpellBook spellbook : batch) {
+                if (insertSpellbook(spellbook)) {
+                    added++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (added > 0) {
+            commitAll();
+        }
+        return added;
+    }
+
+    /**
+     * Stores and indexes a spellbook. Called with the catalog write lock held.
+     * @param spellbook The spellbook to add
+     * @return true if added, false if serial number already exists
+     */
+    private boolean insertSpellbook(SpellBook spellbook) {
+        if (spellbookLookup.containsKey(spellbook.getSerialNumber())) {
             return false;
         }
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.logAddSpellbook(spellbook);
+        }
+        // Number first so a spellbook found in the maps has its ordinal, and
+        // store before indexing so every serial number reachable through an index resolves
+        spellbook.setOrdinal(spellbooksByOrdinal.size());
+        spellbooksByOrdinal.add(spellbook);
+        spellbookLookup.put(spellbook.getSerialNumber(), spellbook);
         spellbooks.put(spellbook.getSerialNumber(), spellbook);
+        indexSpellbook(spellbook);
+        catalogVersion.incrementAndGet();
         return true;
     }
 
+    /**
+     * Records a newly added spellbook in the type and inventor indexes.
+     * @param spellbook The spellbook to index
+     */
+    private void indexSpellbook(SpellBook spellbook) {
+        typeIndex.add(spellbook.getTypeCode()).addSerial(spellbook.getSerialNumber());
+        inventorIndex.add(spellbook.getInventorCode()).addSerial(spellbook.getSerialNumber());
+        copyCounts.computeIfAbsent(spellbook.getTitle(), k -> new ConcurrentSkipListMap<>())
+                .merge(spellbook.getInventorCode(), 1, Integer::sum);
+        titleIndex.add(spellbook);
+        if (spellbook.isAvailable()) {
+            availableSerials.put(spellbook.getSerialNumber(), Boolean.TRUE);
+        } else {
+            markRented(spellbook);
+        }
+    }
+
+    /**
+     * Adds spellbooks to a new Archive, building each index on its own task
+     * of the common fork-join pool. Every skip list is built from sorted input
+     * in one linear pass rather than by an insert per spellbook, and the
+     * lookup map is sized up front.
+     * @param sorted The spellbooks, sorted by serial number with no duplicates
+     */
+    private void restoreSpellbooks(SpellBook[] sorted) {
+        Lock lock = catalogLock.writeLock();
+        lock.lock();
+        try {
+            // The skip lists share one boxed serial number per spellbook
+            Integer[] serials = new Integer[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i].setOrdinal(spellbooksByOrdinal.size());
+                spellbooksByOrdinal.add(sorted[i]);
+                serials[i] = sorted[i].getSerialNumber();
+            }
+
+            List<Runnable> builds = List.of(
+                    () -> {
+                        IntMap<SpellBook> lookup = new IntMap<>(sorted.length);
+                        for (SpellBook spellbook : sorted) {
+                            lookup.put(spellbook.getSerialNumber(), spellbook);
+                        }
+                        spellbookLookup = lookup;
+                    },
+                    () -> spellbooks = new ConcurrentSkipListMap<>(new SortedRun<>(serials, 0, serials.length, i -> sorted[i])),
+                    () -> restoreIndex(sorted, serials, SpellBook::getTypeCode, typeIndex),
+                    () -> restoreIndex(sorted, serials, SpellBook::getInventorCode, inventorIndex),
+                    () -> restoreCopyCounts(sorted),
+                    () -> {
+                        for (SpellBook spellbook : sorted) {
+                            titleIndex.add(spellbook);
+                        }
+                    },
+                    () -> restoreAvailability(sorted, serials));
+            List<Callable<Object>> tasks = new ArrayList<>(builds.size());
+            for (Runnable build : builds) {
+                tasks.add(Executors.callable(build));
+            }
+            for (Future<Object> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while restoring spellbooks", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to restore spellbooks", e.getCause());
+        } finally {
+            catalogVersion.incrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fills the type or inventor index of a new Archive. Serial numbers are
+     * grouped by code with a counting sort, which keeps each group in
+     * ascending order for its linear build.
+     */
+    private static void restoreIndex(SpellBook[] sorted, Integer[] serials, ToIntFunction<SpellBook> code,
+                                     SymbolIndex index) {
+        int codes = 0;
+        for (SpellBook spellbook : sorted) {
+            codes = Math.max(codes, code.applyAsInt(spellbook) + 1);
+        }
+        int[] groupStart = new int[codes + 1];
+        for (SpellBook spellbook : sorted) {
+            groupStart[code.applyAsInt(spellbook) + 1]++;
+        }
+        for (int c = 0; c < codes; c++) {
+            groupStart[c + 1] += groupStart[c];
+        }
+        Integer[] grouped = new Integer[sorted.length];
+        int[] next = Arrays.copyOf(groupStart, codes);
+        for (int i = 0; i < sorted.length; i++) {
+            grouped[next[code.applyAsInt(sorted[i])]++] = serials[i];
+        }
+        for (int c = 0; c < codes; c++) {
+            if (groupStart[c] < groupStart[c + 1]) {
+                index.add(c).restoreSerials(new SortedRun<>(grouped, groupStart[c], groupStart[c + 1], i -> Boolean.TRUE));
+            }
+        }
+    }
+
+    /**
+     * A run of keys already in ascending order seen as a sorted map, so that
+     * a skip list can be built from it in one linear pass. Only iteration is
+     * supported.
+     */
+    private static final class SortedRun<V> extends AbstractMap<Integer, V> implements SortedMap<Integer, V> {
+        private final Integer[] keys;
+        private final int from;
+        private final int to;
+        private final IntFunction<V> values; // position in keys -> value
+
+        SortedRun(Integer[] keys, int from, int to, IntFunction<V> values) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.values = values;
+        }
+
+        @Override
+        public Set<Map.Entry<Integer, V>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<Integer, V>> iterator() {
+                    return new Iterator<>() {
+                        private int next = from;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < to;
+                        }
+
+                        @Override
+                        public Map.Entry<Integer, V> next() {
+                            if (next >= to) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<Integer, V> entry = new SimpleImmutableEntry<>(keys[next], values.apply(next));
+                            next++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return to - from;
+                }
+            };
+        }
+
+        @Override
+        public Comparator<? super Integer> comparator() {
+            return null;
+        }
+
+        @Override
+        public Integer firstKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return keys[from];
+        }
+
+        @Override
+        public Integer lastKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return keys[to - 1];
+        }
+
+        @Override
+        public SortedMap<Integer, V> subMap(Integer fromKey, Integer toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<Integer, V> headMap(Integer toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<Integer, V> tailMap(Integer fromKey) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Fills the copy counts of a new Archive, counting in hash maps first.
+     */
+    private void restoreCopyCounts(SpellBook[] sorted) {
+        Map<String, Map<Integer, Integer>> counts = new HashMap<>();
+        for (SpellBook spellbook : sorted) {
+            counts.computeIfAbsent(spellbook.getTitle(), k -> new HashMap<>())
+                    .merge(spellbook.getInventorCode(), 1, Integer::sum);
+        }
+        for (Map.Entry<String, Map<Integer, Integer>> entry : counts.entrySet()) {
+            copyCounts.put(entry.getKey(), new ConcurrentSkipListMap<>(entry.getValue()));
+        }
+    }
+
+    /**
+     * Fills the availability index and rented counts of a new Archive.
+     */
+    private void restoreAvailability(SpellBook[] sorted, Integer[] serials) {
+        Integer[] available = new Integer[sorted.length];
+        int count = 0;
+        Map<Integer, Integer> rented = new HashMap<>();
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i].isAvailable()) {
+                available[count++] = serials[i];
+            } else {
+                rented.merge(sorted[i].getTypeCode(), 1, Integer::sum);
+            }
+        }
+        availableSerials = new ConcurrentSkipListMap<>(new SortedRun<>(available, 0, count, i -> Boolean.TRUE));
+        for (Map.Entry<Integer, Integer> entry : rented.entrySet()) {
+            typeIndex.add(entry.getKey()).getRented().addAndGet(entry.getValue());
+            rentedCount.addAndGet(entry.getValue());
+        }
+    }
+
+    /**
+     * Resolves the serial numbers stored under a key of an index.
+     * @param index The type or inventor index
+     * @param key The key to look up (case-insensitive)
+     * @return List of spellbooks sorted by serial number
+     */
+    private List<SpellBook> lookupIndex(SymbolIndex index, String key) {
+        SymbolIndex.Group group = index.find(key);
+        if (group == null) {
+            return new ArrayList<>();
+        }
+
+        NavigableSet<Integer> serials = group.getSerials();
+        List<SpellBook> result = new ArrayList<>(serials.size());
+        for (int serial : serials) {
+            result.add(spellbookLookup.get(serial));
+        }
+        return result;
+    }
+
     /**
      * Gets a spellbook by serial number.
      * @param serialNumber The serial number
      * @return The spellbook, or null if not found
      */
     public SpellBook getSpellbook(int serialNumber) {
-        return spellbooks.get(serialNumber);
+        return spellbookLookup.get(serialNumber);
     }
 
     /**
@@ -83,9 +509,38 @@ public class Archive {
      * @return List of spellbooks
      */
     public List<SpellBook> getAllSpellbooks() {
-        return spellbooks.values().stream()
-                .sorted(Comparator.comparingInt(SpellBook::getSerialNumber))
-                .collect(Collectors.toList());
+        return new ArrayList<>(spellbooks.values());
+    }
+
+    /**
+     * Gets all spellbooks whose serial numbers fall within a range, sorted by serial number.
+     * @param from The lowest serial number (inclusive)
+     * @param to The highest serial number (inclusive)
+     * @return List of spellbooks, empty if the range is inverted
+     */
+    public List<SpellBook> getSpellbooksInRange(int from, int to) {
+        if (from > to) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(spellbooks.subMap(from, true, to, true).values());
+    }
+
+    /**
+     * Gets the spellbook with the lowest serial number.
+     * @return The spellbook, or null if there are no spellbooks
+     */
+    public SpellBook getFirstSpellbook() {
+        Map.Entry<Integer, SpellBook> entry = spellbooks.firstEntry();
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Gets the spellbook with the highest serial number.
+     * @return The spellbook, or null if there are no spellbooks
+     */
+    public SpellBook getLastSpellbook() {
+        Map.Entry<Integer, SpellBook> entry = spellbooks.lastEntry();
+        return entry == null ? null : entry.getValue();
     }
 
     /**
@@ -93,10 +548,94 @@ public class Archive {
      * @return List of available spellbooks
      */
     public List<SpellBook> getAvailableSpellbooks() {
-        return spellbooks.values().stream()
-                .filter(SpellBook::isAvailable)
-                .sorted(Comparator.comparingInt(SpellBook::getSerialNumber))
-                .collect(Collectors.toList());
+        List<SpellBook> available = new ArrayList<>(availableSerials.size());
+        for (int serial : availableSerials.keySet()) {
+            available.add(spellbookLookup.get(serial));
+        }
+        return available;
+    }
+
+    /**
+     * Gets the number of spellbooks currently available.
+     * @return The available count
+     */
+    public int getAvailableCount() {
+        return availableSerials.size();
+    }
+
+    /**
+     * Gets the number of spellbooks currently rented out.
+     * @return The rented count
+     */
+    public int getRentedCount() {
+        return rentedCount.get();
+    }
+
+    /**
+     * Gets the number of spellbooks in the system.
+     * @return The spellbook count
+     */
+    public int getSpellbookCount() {
+        return spellbookLookup.size();
+    }
+
+    /**
+     * Gets the number of students in the system.
+     * @return The student count
+     */
+    public int getStudentCount() {
+        return students.size();
+    }
+
+    /**
+     * Gets the number of completed loans, which is the length of every
+     * spellbook's rental history added up.
+     * @return The number of history entries
+     */
+    public long getHistoryEntryCount() {
+        return historyEntries.sum();
+    }
+
+    /**
+     * Gets a number that changes whenever spellbooks are added. Output read
+     * between two equal values reflects one catalog.
+     * @return The catalog version
+     */
+    public long getCatalogVersion() {
+        return catalogVersion.get();
+    }
+
+    /**
+     * Gets a number that changes whenever a spellbook is rented or returned,
+     * after the change is visible. Output read between two equal values
+     * reflects one set of loans.
+     * @return The loan version
+     */
+    public long getLoanVersion() {
+        return loanVersion.sum();
+    }
+
+    /**
+     * Gets the number of available spellbooks of a specific type.
+     * @param type The type (case-insensitive)
+     * @return The available count, 0 if the type is unknown
+     */
+    public int getAvailableCount(String type) {
+        SymbolIndex.Group group = typeIndex.find(type);
+        if (group == null) {
+            return 0;
+        }
+        return group.getSerials().size() - group.getRented().get();
+    }
+
+    /**
+     * Gets the number of rented spellbooks of a specific type.
+     * @param type The type (case-insensitive)
+     * @return The rented count, 0 if the type is unknown
+     */
+    public int getRentedCount(String type) {
+        SymbolIndex.Group group = typeIndex.find(type);
+        return group == null ? 0 : group.getRented().get();
     }
 
     /**
@@ -104,11 +643,7 @@ public class Archive {
      * @return List of types
      */
     public List<String> getAllTypes() {
-        return spellbooks.values().stream()
-                .map(SpellBook::getType)
-                .distinct()
-                .sorted()
-                .collect(Collectors.toList());
+        return typeIndex.getNames();
     }
 
     /**
@@ -116,11 +651,7 @@ public class Archive {
      * @return List of inventors
      */
     public List<String> getAllInventors() {
-        return spellbooks.values().stream()
-                .map(SpellBook::getInventor)
-                .distinct()
-                .sorted()
-                .collect(Collectors.toList());
+        return inventorIndex.getNames();
     }
 
     /**
@@ -129,10 +660,7 @@ public class Archive {
      * @return List of spellbooks
      */
     public List<SpellBook> getSpellbooksByType(String type) {
-        return spellbooks.values().stream()
-                .filter(s -> s.getType().equalsIgnoreCase(type))
-                .sorted(Comparator.comparingInt(SpellBook::getSerialNumber))
-                .collect(Collectors.toList());
+        return lookupIndex(typeIndex, type);
     }
 
     /**
@@ -141,34 +669,75 @@ public class Archive {
      * @return List of spellbooks
      */
     public List<SpellBook> getSpellbooksByInventor(String inventor) {
-        return spellbooks.values().stream()
-                .filter(s -> s.getInventor().equalsIgnoreCase(inventor))
-                .sorted(Comparator.comparingInt(SpellBook::getSerialNumber))
-                .collect(Collectors.toList());
+        return lookupIndex(inventorIndex, inventor);
+    }
+
+    /**
+     * Searches spellbook titles by words, the last of which may be a prefix.
+     * @param query The search text (case-insensitive)
+     * @param offset Number of ranked spellbooks to skip
+     * @param limit Maximum number of spellbooks to return
+     * @return One page of spellbooks, best matches first, and the total number of matches
+     */
+    public TitleIndex.Page searchSpellbooks(String query, long offset, int limit) {
+        Lock lock = catalogLock.readLock();
+        lock.lock();
+        try {
+            return titleIndex.search(query, offset, limit);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Gets the number of copies of each unique spellbook (by title and inventor).
-     * @return Map of spellbook description to count
+     * @return Map of spellbook description to count, in title order
      */
     public Map<String, Integer> getNumberOfCopies() {
         Map<String, Integer> copies = new LinkedHashMap<>();
+        for (Map.Entry<String, NavigableMap<Integer, Integer>> entry : copyCounts.entrySet()) {
+            addCopies(copies, entry.getKey(), entry.getValue());
+        }
+        return copies;
+    }
 
-        // Group by title and inventor
-        Map<String, List<SpellBook>> groups = spellbooks.values().stream()
-                .collect(Collectors.groupingBy(s -> s.getTitle() + "|" + s.getInventor()));
-
-        // Sort by title alphabetically and create result map
-        groups.entrySet().stream()
-                .sorted(Comparator.comparing(e -> e.getValue().get(0).getTitle()))
-                .forEach(e -> {
-                    SpellBook first = e.getValue().get(0);
-                    copies.put(first.getShortString(), e.getValue().size());
-                });
-
+    /**
+     * Gets the number of copies of each spellbook with a specific title.
+     * @param title The exact title
+     * @return Map of spellbook description to count, empty if the title is unknown
+     */
+    public Map<String, Integer> getNumberOfCopies(String title) {
+        Map<String, Integer> copies = new LinkedHashMap<>();
+        NavigableMap<Integer, Integer> byInventor = copyCounts.get(title);
+        if (byInventor != null) {
+            addCopies(copies, title, byInventor);
+        }
         return copies;
     }
 
+    /**
+     * Appends the copy counts of one title, using the spellbook short string
+     * format, in inventor order. Most titles have one inventor, so names are
+     * only decoded and sorted when there are several.
+     */
+    private void addCopies(Map<String, Integer> copies, String title, NavigableMap<Integer, Integer> byInventor) {
+        Map.Entry<Integer, Integer> first = byInventor.firstEntry();
+        if (first == null) {
+            return;
+        }
+        if (byInventor.higherKey(first.getKey()) == null) {
+            copies.put(title + " (" + SpellBook.INVENTORS.decode(first.getKey()) + ")", first.getValue());
+            return;
+        }
+        NavigableMap<String, Integer> byName = new TreeMap<>();
+        for (Map.Entry<Integer, Integer> entry : byInventor.entrySet()) {
+            byName.put(SpellBook.INVENTORS.decode(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : byName.entrySet()) {
+            copies.put(title + " (" + entry.getKey() + ")", entry.getValue());
+        }
+    }
+
     // ==================== Rental Operations ====================
 
     /**
@@ -178,30 +747,61 @@ public class Archive {
      * @return Result message
      */
     public String rentSpellbook(int studentNumber, int serialNumber) {
+        ArchiveEvents.RentEvent event = new ArchiveEvents.RentEvent();
+        event.begin();
+        byte result = rent(studentNumber, serialNumber);
+        if (event.shouldCommit()) {
+            event.studentNumber = studentNumber;
+            event.serialNumber = serialNumber;
+            event.result = result;
+            event.message = RESULT_MESSAGES[result];
+            event.commit();
+        }
+        return RESULT_MESSAGES[result];
+    }
+
+    private byte rent(int studentNumber, int serialNumber) {
         if (!hasStudents()) {
-            return "No students in system.";
+            return NO_STUDENTS;
         }
         Student student = students.get(studentNumber);
         if (student == null) {
-            return "No such student in system.";
+            return NO_SUCH_STUDENT;
         }
 
         if (!hasSpellbooks()) {
-            return "No spellbooks in system."; 
-        }        
+            return NO_SPELLBOOKS;
+        }
 
-        SpellBook spellbook = spellbooks.get(serialNumber);
+        SpellBook spellbook = spellbookLookup.get(serialNumber);
         if (spellbook == null) {
-            return "No such spellbook in system.";
+            return NO_SUCH_SPELLBOOK;
         }
 
-        if (!spellbook.isAvailable()) {
-            return "Spellbook is currently unavailable.";
+        if (spellbook.tryRent(studentNumber) != SpellBook.AVAILABLE) {
+            return UNAVAILABLE;
         }
 
-        spellbook.rent(studentNumber);
-        student.rentSpellbook(spellbook);
-        return "Success.";
+        // Journaled while the spellbook is claimed and under the student's lock,
+        // so records are in the order of both the spellbook's and the student's loans,
+        // and before any index or loan changes, so a failed append leaves nothing to undo
+        Journal journal = this.journal;
+        long sequence = 0;
+        synchronized (student) {
+            if (journal != null) {
+                try {
+                    sequence = journal.logRent(studentNumber, serialNumber);
+                } catch (RuntimeException e) {
+                    cancelRents(studentNumber, spellbook);
+                    throw e;
+                }
+            }
+            preserve(student, sequence);
+            markRented(spellbook);
+            student.rentSpellbook(spellbook);
+        }
+        commit(journal, sequence);
+        return SUCCESS;
     }
 
     /**
@@ -211,25 +811,51 @@ public class Archive {
      * @return Result message
      */
     public String relinquishSpellbook(int studentNumber, int serialNumber) {
+        ArchiveEvents.RelinquishEvent event = new ArchiveEvents.RelinquishEvent();
+        event.begin();
+        byte result = relinquish(studentNumber, serialNumber);
+        if (event.shouldCommit()) {
+            event.studentNumber = studentNumber;
+            event.serialNumber = serialNumber;
+            event.result = result;
+            event.message = RESULT_MESSAGES[result];
+            event.commit();
+        }
+        return RESULT_MESSAGES[result];
+    }
+
+    private byte relinquish(int studentNumber, int serialNumber) {
         if (!hasStudents()) {
-            return "No students in system.";
+            return NO_STUDENTS;
         }
         Student student = students.get(studentNumber);
         if (student == null) {
-            return "No such student in system.";
+            return NO_SUCH_STUDENT;
         }
 
         if (!hasSpellbooks()) {
-            return "No spellbooks in system."; 
+            return NO_SPELLBOOKS;
         }
 
-        SpellBook spellbook = spellbooks.get(serialNumber);
-        if (spellbook == null || !student.returnSpellbook(spellbook)) {
-            return "Unable to return spellbook.";
+        SpellBook spellbook = spellbookLookup.get(serialNumber);
+        if (spellbook == null) {
+            return NOT_RETURNABLE;
         }
-
-        spellbook.returnBook();
-        return "Success.";
+        Journal journal = this.journal;
+        long sequence = 0;
+        synchronized (student) {
+            if (!student.isRenting(spellbook)) {
+                return NOT_RETURNABLE;
+            }
+            if (journal != null) {
+                sequence = journal.logRelinquish(studentNumber, serialNumber);
+            }
+            preserve(student, sequence);
+            student.returnSpellbook(spellbook);
+            releaseSpellbook(spellbook);
+        }
+        commit(journal, sequence);
+        return SUCCESS;
     }
 
     /**
@@ -246,145 +872,580 @@ public class Archive {
             return "No such student in system.";
         }
 
-        List<SpellBook> returned = student.returnAllSpellbooks();
-        for (SpellBook spellbook : returned) {
-            spellbook.returnBook();
+        Journal journal = this.journal;
+        long sequence = 0;
+        synchronized (student) {
+            if (journal != null) {
+                sequence = journal.logRelinquishes(studentNumber, student.getCurrentlyRenting());
+            }
+            preserve(student, sequence);
+            for (SpellBook spellbook : student.returnAllSpellbooks()) {
+                releaseSpellbook(spellbook);
+            }
         }
+        commit(journal, sequence);
 
         return "Success.";
     }
 
+    // ==================== Batch Rental Operations ====================
+
+    /**
+     * Rents several spellbooks to one student. The student is looked up once,
+     * the whole batch is journaled under one student lock and committed with
+     * one sync.
+     * @param studentNumber The student number
+     * @param serialNumbers The spellbook serial numbers
+     * @param allOrNothing true to rent none of them unless all can be rented
+     * @return A result code for each serial number, in order
+     */
+    public byte[] rentSpellbooks(int studentNumber, int[] serialNumbers, boolean allOrNothing) {
+        ArchiveEvents.RentalBatchEvent event = new ArchiveEvents.RentalBatchEvent();
+        event.begin();
+        byte[] results = rentBatch(studentNumber, serialNumbers, allOrNothing);
+        commitRentalBatch(event, "RENT", studentNumber, allOrNothing, results);
+        return results;
+    }
+
+    private byte[] rentBatch(int studentNumber, int[] serialNumbers, boolean allOrNothing) {
+        byte[] results = new byte[serialNumbers.length];
+        Student student = students.get(studentNumber);
+        byte failure = !hasStudents() ? NO_STUDENTS
+                : student == null ? NO_SUCH_STUDENT
+                : !hasSpellbooks() ? NO_SPELLBOOKS
+                : SUCCESS;
+        if (failure != SUCCESS) {
+            Arrays.fill(results, failure);
+            return results;
+        }
+
+        SpellBook[] batch = new SpellBook[serialNumbers.length];
+        if (!resolve(serialNumbers, batch, results, NO_SUCH_SPELLBOOK, allOrNothing)) {
+            return results;
+        }
+
+        // Claim every spellbook first, so a failed all-or-nothing batch or
+        // journal append is undone before any index or loan has changed
+        List<SpellBook> claimed = new ArrayList<>(batch.length);
+        for (int i = 0; i < batch.length; i++) {
+            if (batch[i] != null && batch[i].tryRent(studentNumber) != SpellBook.AVAILABLE) {
+                results[i] = UNAVAILABLE;
+                batch[i] = null;
+                if (allOrNothing) {
+                    cancelRents(studentNumber, Arrays.copyOf(batch, i));
+                    markNotApplied(results);
+                    return results;
+                }
+            } else if (batch[i] != null) {
+                claimed.add(batch[i]);
+            }
+        }
+
+        Journal journal = this.journal;
+        long sequence = 0;
+        synchronized (student) {
+            if (journal != null) {
+                try {
+                    sequence = journal.logRents(studentNumber, claimed);
+                } catch (RuntimeException e) {
+                    cancelRents(studentNumber, batch);
+                    throw e;
+                }
+            }
+            preserve(student, sequence);
+            for (SpellBook spellbook : claimed) {
+                markRented(spellbook);
+                student.rentSpellbook(spellbook);
+            }
+        }
+        commit(journal, sequence);
+        return results;
+    }
+
+    /**
+     * Returns several spellbooks from one student, validated and journaled
+     * together like rentSpellbooks.
+     * @param studentNumber The student number
+     * @param serialNumbers The spellbook serial numbers
+     * @param allOrNothing true to return none of them unless all can be returned
+     * @return A result code for each serial number, in order
+     */
+    public byte[] relinquishSpellbooks(int studentNumber, int[] serialNumbers, boolean allOrNothing) {
+        ArchiveEvents.RentalBatchEvent event = new ArchiveEvents.RentalBatchEvent();
+        event.begin();
+        byte[] results = relinquishBatch(studentNumber, serialNumbers, allOrNothing);
+        commitRentalBatch(event, "RELINQUISH", studentNumber, allOrNothing, results);
+        return results;
+    }
+
+    private byte[] relinquishBatch(int studentNumber, int[] serialNumbers, boolean allOrNothing) {
+        byte[] results = new byte[serialNumbers.length];
+        Student student = students.get(studentNumber);
+        byte failure = !hasStudents() ? NO_STUDENTS
+                : student == null ? NO_SUCH_STUDENT
+                : !hasSpellbooks() ? NO_SPELLBOOKS
+                : SUCCESS;
+        if (failure != SUCCESS) {
+            Arrays.fill(results, failure);
+            return results;
+        }
+
+        SpellBook[] batch = new SpellBook[serialNumbers.length];
+        if (!resolve(serialNumbers, batch, results, NOT_RETURNABLE, allOrNothing)) {
+            return results;
+        }
+
+        Journal journal = this.journal;
+        long sequence = 0;
+        synchronized (student) {
+            if (allOrNothing) {
+                Set<SpellBook> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (int i = 0; i < batch.length; i++) {
+                    if (!student.isRenting(batch[i]) || !seen.add(batch[i])) {
+                        results[i] = NOT_RETURNABLE;
+                        markNotApplied(results);
+                        return results;
+                    }
+                }
+            }
+            // Journal every return before the first one changes the student
+            List<SpellBook> returning = new ArrayList<>(batch.length);
+            Set<SpellBook> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < batch.length; i++) {
+                if (batch[i] == null) {
+                    continue;
+                }
+                if (!student.isRenting(batch[i]) || !seen.add(batch[i])) {
+                    results[i] = NOT_RETURNABLE;
+                } else {
+                    returning.add(batch[i]);
+                }
+            }
+            if (journal != null) {
+                sequence = journal.logRelinquishes(studentNumber, returning);
+            }
+            preserve(student, sequence);
+            for (SpellBook spellbook : returning) {
+                student.returnSpellbook(spellbook);
+                releaseSpellbook(spellbook);
+            }
+        }
+        commit(journal, sequence);
+        return results;
+    }
+
+    /**
+     * Looks up the spellbooks of a batch.
+     * @return false if an all-or-nothing batch names a missing spellbook;
+     *         the results are then complete
+     */
+    private boolean resolve(int[] serialNumbers, SpellBook[] batch, byte[] results, byte missing, boolean allOrNothing) {
+        for (int i = 0; i < serialNumbers.length; i++) {
+            batch[i] = spellbookLookup.get(serialNumbers[i]);
+            if (batch[i] == null) {
+                results[i] = missing;
+                if (allOrNothing) {
+                    markNotApplied(results);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void commitRentalBatch(ArchiveEvents.RentalBatchEvent event, String operation,
+                                          int studentNumber, boolean allOrNothing, byte[] results) {
+        if (event.shouldCommit()) {
+            int succeeded = 0;
+            for (byte result : results) {
+                if (result == SUCCESS) {
+                    succeeded++;
+                }
+            }
+            event.operation = operation;
+            event.studentNumber = studentNumber;
+            event.allOrNothing = allOrNothing;
+            event.requested = results.length;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    /**
+     * Marks every item of a failed all-or-nothing batch that has no failure of its own.
+     */
+    private static void markNotApplied(byte[] results) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == SUCCESS) {
+                results[i] = NOT_APPLIED;
+            }
+        }
+    }
+
+    /**
+     * Gets the message for a rental result code, as returned by the
+     * single-item rental methods.
+     * @param result The result code
+     * @return The message
+     */
+    public static String getResultMessage(byte result) {
+        return RESULT_MESSAGES[result];
+    }
+
+    /**
+     * Checks whether a result message returned by an Archive operation reports a failure.
+     * @param result The message
+     * @return true for error messages
+     */
+    public static boolean isErrorResult(String result) {
+        return ERROR_RESULTS.contains(result);
+    }
+
+    /**
+     * Moves a spellbook from the availability index to the rented counts.
+     * Called after winning the spellbook's compare-and-set, so updates for one
+     * spellbook are ordered by its rentals.
+     * @param spellbook The spellbook that was rented
+     */
+    private void markRented(SpellBook spellbook) {
+        availableSerials.remove(spellbook.getSerialNumber());
+        typeIndex.add(spellbook.getTypeCode()).getRented().incrementAndGet();
+        rentedCount.incrementAndGet();
+        loanVersion.increment();
+    }
+
+    /**
+     * Puts a spellbook the student no longer holds back on the shelf.
+     * The indexes are updated before the renter is cleared, so they are never
+     * touched by the next renter before this return has been recorded.
+     * Called with the student's lock held, so a snapshot copying the student
+     * also finds the return in the spellbook's history.
+     * @param spellbook The spellbook being returned
+     */
+    private void releaseSpellbook(SpellBook spellbook) {
+        markAvailable(spellbook);
+        spellbook.returnBook();
+        historyEntries.increment();
+        loanVersion.increment();
+    }
+
+    /**
+     * Moves a spellbook from the rented counts back to the availability index.
+     * @param spellbook The spellbook that was returned
+     */
+    private void markAvailable(SpellBook spellbook) {
+        availableSerials.put(spellbook.getSerialNumber(), Boolean.TRUE);
+        typeIndex.get(spellbook.getTypeCode()).getRented().decrementAndGet();
+        rentedCount.decrementAndGet();
+    }
+
+    /**
+     * Releases spellbooks claimed with tryRent whose rental was never recorded.
+     * @param studentNumber The student number that claimed them
+     * @param claimed The spellbooks; null entries are skipped
+     */
+    private void cancelRents(int studentNumber, SpellBook... claimed) {
+        for (SpellBook spellbook : claimed) {
+            if (spellbook != null) {
+                spellbook.cancelRent(studentNumber);
+            }
+        }
+        loanVersion.increment();
+    }
+
+    // ==================== History Queries ====================
+
     /**
      * Finds common spellbooks in the rental history of multiple students.
      * @param studentNumbers List of student numbers
      * @return List of common spellbooks in alphabetical order
      */
     public List<SpellBook> findCommonSpellbooks(List<Integer> studentNumbers) {
-        if (studentNumbers.isEmpty()) {
+        ArchiveEvents.HistoryQueryEvent event = new ArchiveEvents.HistoryQueryEvent();
+        event.begin();
+        List<SpellBook> result = intersectHistories(studentNumbers);
+        commitHistoryQuery(event, "ALL", studentNumbers, 0, result);
+        return result;
+    }
+
+    private List<SpellBook> intersectHistories(List<Integer> studentNumbers) {
+        List<int[]> histories = getHistoryOrdinals(studentNumbers);
+        if (histories == null) {
             return new ArrayList<>();
         }
 
-        // Get the rental history of the first student
-        Student firstStudent = students.get(studentNumbers.get(0));
-        if (firstStudent == null) {
+        // Intersect smallest histories first so the result shrinks as early as possible
+        histories.sort(Comparator.comparingInt(history -> history.length));
+        int[] common = histories.get(0);
+        for (int i = 1; i < histories.size() && common.length > 0; i++) {
+            common = intersect(common, histories.get(i));
+        }
+
+        return toSortedSpellbooks(common);
+    }
+
+    /**
+     * Finds spellbooks in the rental history of any of the given students.
+     * @param studentNumbers List of student numbers
+     * @return List of spellbooks in alphabetical order
+     */
+    public List<SpellBook> findAnySpellbooks(List<Integer> studentNumbers) {
+        ArchiveEvents.HistoryQueryEvent event = new ArchiveEvents.HistoryQueryEvent();
+        event.begin();
+        List<SpellBook> result = uniteHistories(studentNumbers);
+        commitHistoryQuery(event, "ANY", studentNumbers, 0, result);
+        return result;
+    }
+
+    private List<SpellBook> uniteHistories(List<Integer> studentNumbers) {
+        List<int[]> histories = getHistoryOrdinals(studentNumbers);
+        if (histories == null) {
             return new ArrayList<>();
         }
+        return toSortedSpellbooks(inAtLeast(histories, 1));
+    }
 
-        Set<SpellBook> common = new HashSet<>(firstStudent.getRentalHistory());
+    /**
+     * Finds spellbooks rented by at least a number of the given students.
+     * @param studentNumbers List of student numbers
+     * @param threshold The minimum number of students, at least 1
+     * @return List of spellbooks in alphabetical order
+     */
+    public List<SpellBook> findSpellbooksRentedByAtLeast(List<Integer> studentNumbers, int threshold) {
+        ArchiveEvents.HistoryQueryEvent event = new ArchiveEvents.HistoryQueryEvent();
+        event.begin();
+        List<SpellBook> result = countHistories(studentNumbers, threshold);
+        commitHistoryQuery(event, "ATLEAST", studentNumbers, threshold, result);
+        return result;
+    }
 
-        // Intersect with other students' histories
-        for (int i = 1; i < studentNumbers.size(); i++) {
-            Student student = students.get(studentNumbers.get(i));
+    private List<SpellBook> countHistories(List<Integer> studentNumbers, int threshold) {
+        List<int[]> histories = getHistoryOrdinals(studentNumbers);
+        if (histories == null || threshold < 1 || threshold > histories.size()) {
+            return new ArrayList<>();
+        }
+        return toSortedSpellbooks(inAtLeast(histories, threshold));
+    }
+
+    private static void commitHistoryQuery(ArchiveEvents.HistoryQueryEvent event, String mode,
+                                           List<Integer> studentNumbers, int threshold, List<SpellBook> result) {
+        if (event.shouldCommit()) {
+            event.mode = mode;
+            event.studentNumbers = studentNumbers.toString();
+            event.studentCount = studentNumbers.size();
+            event.threshold = threshold;
+            event.matches = result.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the sorted spellbook ordinals kept for each of the given students' histories.
+     * @param studentNumbers List of student numbers
+     * @return List of ordinal arrays, or null if the list is empty or a student does not exist
+     */
+    private List<int[]> getHistoryOrdinals(List<Integer> studentNumbers) {
+        if (studentNumbers.isEmpty()) {
+            return null;
+        }
+
+        List<int[]> histories = new ArrayList<>(studentNumbers.size());
+        for (int studentNumber : studentNumbers) {
+            Student student = students.get(studentNumber);
             if (student == null) {
-                return new ArrayList<>();
+                return null;
+            }
+            histories.add(student.getHistoryOrdinals());
+        }
+        return histories;
+    }
+
+    /**
+     * Intersects two sorted arrays of distinct ordinals by searching the
+     * larger one for each entry of the smaller, so a short history costs
+     * little against a long one.
+     * @return A new sorted array
+     */
+    private static int[] intersect(int[] smaller, int[] larger) {
+        int[] common = new int[smaller.length];
+        int count = 0;
+        int from = 0;
+        for (int i = 0; i < smaller.length && from < larger.length; i++) {
+            int found = Arrays.binarySearch(larger, from, larger.length, smaller[i]);
+            if (found >= 0) {
+                common[count++] = smaller[i];
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return Arrays.copyOf(common, count);
+    }
+
+    /**
+     * Finds the ordinals present in at least a number of sorted arrays of
+     * distinct ordinals: after sorting all of them together, each ordinal's
+     * run length is the number of arrays holding it.
+     * @return A new sorted array
+     */
+    private static int[] inAtLeast(List<int[]> histories, int threshold) {
+        int total = 0;
+        for (int[] history : histories) {
+            total += history.length;
+        }
+        int[] all = new int[total];
+        int offset = 0;
+        for (int[] history : histories) {
+            System.arraycopy(history, 0, all, offset, history.length);
+            offset += history.length;
+        }
+        Arrays.sort(all);
+
+        int count = 0;
+        for (int i = 0; i < total; ) {
+            int j = i + 1;
+            while (j < total && all[j] == all[i]) {
+                j++;
+            }
+            if (j - i >= threshold) {
+                all[count++] = all[i];
             }
-            common.retainAll(student.getRentalHistory());
+            i = j;
         }
+        return Arrays.copyOf(all, count);
+    }
 
-        // Sort alphabetically by title
-        return common.stream()
-                .sorted(Comparator.comparing(SpellBook::getTitle))
-                .collect(Collectors.toList());
+    /**
+     * Resolves sorted spellbook ordinals, sorted alphabetically by title.
+     * @param ordinals The ordinals
+     * @return List of spellbooks
+     */
+    private List<SpellBook> toSortedSpellbooks(int[] ordinals) {
+        List<SpellBook> result = new ArrayList<>(ordinals.length);
+        Lock lock = catalogLock.readLock();
+        lock.lock();
+        try {
+            for (int ordinal : ordinals) {
+                result.add(spellbooksByOrdinal.get(ordinal));
+            }
+        } finally {
+            lock.unlock();
+        }
+        result.sort(Comparator.comparing(SpellBook::getTitle)
+                .thenComparingInt(SpellBook::getSerialNumber));
+        return result;
     }
 
     // ==================== CSV Operations ====================
 
     /**
      * Adds a spellbook from a CSV file.
+     * The file is indexed by serial number on first use, so later lookups in the
+     * same file read only the requested row.
      * @param filename The CSV file path
      * @param serialNumber The serial number to add
      * @return Result message
      */
     public String addSpellbookFromCSV(String filename, int serialNumber) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            boolean firstLine = true;
-            while ((line = reader.readLine()) != null) {
-                // Skip header row if present
-                if (firstLine) {
-                    firstLine = false;
-                    if (line.trim().startsWith("serialNumber") || line.trim().startsWith("serial")) {
-                        continue;
-                    }
-                }
-
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    try {
-                        int serial = Integer.parseInt(parts[0].trim());
-                        if (serial == serialNumber) {
-                            String title = parts[1].trim();
-                            String inventor = parts[2].trim();
-                            String type = parts[3].trim();
-
-                            SpellBook spellbook = new SpellBook(serial, title, inventor, type);
-                            if (addSpellbook(spellbook)) {
-                                return "Successfully added: " + spellbook.getShortString() + ".";
-                            } else {
-                                return "Spellbook already exists in system.";
-                            }
-                        }
-                    } catch (NumberFormatException e) {
-                        // Skip lines with invalid serial numbers
-                        continue;
-                    }
-                }
+        SpellBook spellbook;
+        try {
+            Path path = Paths.get(filename).toAbsolutePath().normalize();
+            CsvOffsetIndex index = getCsvIndex(path, false);
+            if (!index.contains(serialNumber)) {
+                return "No such spellbook in file.";
+            }
+            spellbook = index.read(path, serialNumber);
+            if (spellbook == null) {
+                // The file changed without changing its size or timestamp
+                spellbook = getCsvIndex(path, true).read(path, serialNumber);
             }
-        } catch (FileNotFoundException e) {
+        } catch (FileNotFoundException | NoSuchFileException | AccessDeniedException | InvalidPathException e) {
             return "No such file.";
         } catch (IOException e) {
             return "Error reading file.";
         }
-        return "No such spellbook in file.";
+
+        if (spellbook == null) {
+            return "No such spellbook in file.";
+        }
+        if (addSpellbook(spellbook)) {
+            return "Successfully added: " + spellbook.getShortString() + ".";
+        } else {
+            return "Spellbook already exists in system.";
+        }
     }
 
     /**
-     * Adds a collection of spellbooks from a CSV file.
+     * Gets the serial number index of a CSV file, building it if the file is new
+     * or has changed since it was indexed.
+     * @param path The absolute CSV file path
+     * @param rebuild true to discard any cached index
+     * @return The index
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    private CsvOffsetIndex getCsvIndex(Path path, boolean rebuild) throws IOException {
+        BasicFileAttributes attributes = CsvOffsetIndex.attributesOf(path);
+        if (!attributes.isRegularFile()) {
+            throw new FileNotFoundException(path.toString());
+        }
+
+        CsvOffsetIndex index;
+        synchronized (csvIndexes) {
+            index = csvIndexes.get(path);
+        }
+        if (index == null || rebuild || !index.isCurrent(attributes)) {
+            index = CsvOffsetIndex.build(path, attributes);
+            synchronized (csvIndexes) {
+                csvIndexes.put(path, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds a collection of spellbooks from a CSV file using the parallel bulk loader.
      * @param filename The CSV file path
      * @return Result message
      */
     public String addCollectionFromCSV(String filename) {
-        int count = 0;
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            boolean firstLine = true;
-            while ((line = reader.readLine()) != null) {
-                // Skip header row if present
-                if (firstLine) {
-                    firstLine = false;
-                    if (line.trim().startsWith("serialNumber") || line.trim().startsWith("serial")) {
-                        continue;
-                    }
-                }
+        ArchiveEvents.CollectionLoadEvent event = new ArchiveEvents.CollectionLoadEvent();
+        event.begin();
+        String message = loadCollection(filename, event);
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.message = message;
+            event.commit();
+        }
+        return message;
+    }
 
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    try {
-                        int serial = Integer.parseInt(parts[0].trim());
-                        String title = parts[1].trim();
-                        String inventor = parts[2].trim();
-                        String type = parts[3].trim();
-
-                        SpellBook spellbook = new SpellBook(serial, title, inventor, type);
-                        if (addSpellbook(spellbook)) {
-                            count++;
-                        }
-                    } catch (NumberFormatException e) {
-                        // Skip lines with invalid serial numbers
-                        continue;
-                    }
-                }
-            }
-        } catch (FileNotFoundException e) {
+    private String loadCollection(String filename, ArchiveEvents.CollectionLoadEvent event) {
+        CollectionLoader.Result result;
+        try {
+            result = CollectionLoader.load(filename, this);
+        } catch (FileNotFoundException | NoSuchFileException | AccessDeniedException | InvalidPathException e) {
+            // FileReader reported unreadable files as not found, so they still are
             return "No such collection.";
         } catch (IOException e) {
             return "Error reading file.";
         }
+        lastCollectionLoad = result;
+        event.rows = result.getRows();
+        event.added = result.getAdded();
+        event.bytes = result.getBytes();
 
-        if (count == 0) {
+        if (result.getAdded() == 0) {
             return "No spellbooks have been added to the system.";  // 添加这个检查 / Add this check
         }
-        return count + " spellbooks successfully added.";
+        return result.getAdded() + " spellbooks successfully added.";
+    }
+
+    /**
+     * Gets the timing of the most recent ADD COLLECTION.
+     * @return The load result, or null if no collection has been loaded
+     */
+    public CollectionLoader.Result getLastCollectionLoad() {
+        return lastCollectionLoad;
     }
 
     /**
@@ -393,23 +1454,360 @@ public class Archive {
      * @return Result message
      */
     public String saveCollectionToCSV(String filename) {
+        return saveCollectionToCSV(filename, false);
+    }
+
+    /**
+     * Saves all spellbooks to a CSV file.
+     * The file is written to a temporary file and renamed over the target, so a
+     * failed save leaves the previous file intact.
+     * @param filename The CSV file path
+     * @param incremental true to only append the spellbooks added since the last
+     *                    save, when the file is unchanged since that save
+     * @return Result message
+     */
+    public String saveCollectionToCSV(String filename, boolean incremental) {
+        ArchiveEvents.CollectionSaveEvent event = new ArchiveEvents.CollectionSaveEvent();
+        event.begin();
+        String message = saveCollection(filename, incremental, event);
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.message = message;
+            event.commit();
+        }
+        return message;
+    }
+
+    private String saveCollection(String filename, boolean incremental, ArchiveEvents.CollectionSaveEvent event) {
         if (!hasSpellbooks()) {
             return "No spellbooks in system.";
         }
 
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            writer.println("serialNumber,title,inventor,type");
-            List<SpellBook> sorted = getAllSpellbooks();
-            for (SpellBook s : sorted) {
-                writer.println(s.getSerialNumber() + "," + s.getTitle() + "," +
-                             s.getInventor() + "," + s.getType());
+        try {
+            Path path = Paths.get(filename).toAbsolutePath().normalize();
+            synchronized (collectionWriter) {
+                if (incremental) {
+                    int saved = collectionWriter.getSavedCount(path);
+                    event.incremental = saved >= 0 && collectionWriter.append(path, getSpellbooksAddedSince(saved));
+                }
+                if (!event.incremental) {
+                    collectionWriter.write(path, getAllSpellbooksConsistent());
+                }
+                event.rows = collectionWriter.getLastRowsWritten();
+                event.bytes = collectionWriter.getLastBytesWritten();
             }
             return "Success.";
-        } catch (IOException e) {
+        } catch (IOException | InvalidPathException e) {
             return "Error writing file.";
         }
     }
 
+    /**
+     * Gets every spellbook at one point in time, sorted by serial number.
+     * Unlike getAllSpellbooks, no spellbook added while copying is included,
+     * so the size of the result is the number of spellbooks added so far.
+     */
+    private List<SpellBook> getAllSpellbooksConsistent() {
+        Lock lock = catalogLock.readLock();
+        lock.lock();
+        try {
+            return new ArrayList<>(spellbooks.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the spellbooks added after the first count spellbooks, sorted by serial number.
+     */
+    private List<SpellBook> getSpellbooksAddedSince(int count) {
+        List<SpellBook> added;
+        Lock lock = catalogLock.readLock();
+        lock.lock();
+        try {
+            added = new ArrayList<>(spellbooksByOrdinal.subList(count, spellbooksByOrdinal.size()));
+        } finally {
+            lock.unlock();
+        }
+        added.sort(Comparator.comparingInt(SpellBook::getSerialNumber));
+        return added;
+    }
+
+    // ==================== Snapshots ====================
+
+    /**
+     * Saves the whole Archive state to a binary snapshot file.
+     * Rentals continue while the state is copied and written.
+     * @param filename The snapshot file path
+     * @return Result message
+     */
+    public String saveSnapshot(String filename) {
+        try {
+            captureSnapshot().write(Paths.get(filename));
+            return "Success.";
+        } catch (IOException | InvalidPathException e) {
+            return "Error writing file.";
+        }
+    }
+
+    /**
+     * Copies the state as it was at one journal position without stopping
+     * rentals. Registrations and additions are held off only while the
+     * position is marked. Each student is then copied under its own lock,
+     * unless a later change already saved its earlier state; spellbook
+     * renters follow from the copied loans, and the length of each
+     * spellbook's history from the returns in the copied student histories.
+     */
+    private Snapshot captureSnapshot() {
+        captureLock.lock();
+        try {
+            Capture started;
+            int bookCount;
+            int next;
+            Lock catalog = catalogLock.readLock();
+            catalog.lock();
+            try {
+                synchronized (studentLock) {
+                    bookCount = spellbooksByOrdinal.size();
+                    next = nextStudentNumber.get();
+                    Journal journal = this.journal;
+                    if (journal != null) {
+                        started = journal.mark(position -> capture = new Capture(position));
+                    } else {
+                        capture = started = new Capture(Journal.Position.NONE);
+                    }
+                }
+            } finally {
+                catalog.unlock();
+            }
+
+            List<Student> all = new ArrayList<>();
+            try {
+                for (Student student : students.values()) {
+                    // Students registered after the mark have later numbers
+                    if (student.getStudentNumber() < next) {
+                        synchronized (student) {
+                            started.save(student);
+                        }
+                        all.add(student);
+                    }
+                }
+            } finally {
+                capture = null;
+            }
+            return toSnapshot(started, all, bookCount, next);
+        } finally {
+            captureLock.unlock();
+        }
+    }
+
+    /**
+     * Builds a snapshot from the students copied by a capture and the
+     * spellbooks added before it started.
+     */
+    private Snapshot toSnapshot(Capture capture, List<Student> all, int bookCount, int next) {
+        // Spellbooks added after the mark have later ordinals
+        List<SpellBook> sorted = new ArrayList<>(bookCount);
+        for (SpellBook spellbook : spellbooks.values()) {
+            if (spellbook.getOrdinal() < bookCount) {
+                sorted.add(spellbook);
+            }
+        }
+        SpellBook[] books = sorted.toArray(new SpellBook[0]);
+
+        all.sort(Comparator.comparingInt(Student::getStudentNumber));
+        int[] numbers = new int[all.size()];
+        String[] names = new String[all.size()];
+        int[][] loans = new int[all.size()][];
+        int[][] studentHistories = new int[all.size()][];
+        int[] renterByOrdinal = new int[bookCount];
+        int[] returnsByOrdinal = new int[bookCount];
+        Arrays.fill(renterByOrdinal, SpellBook.AVAILABLE);
+        for (int i = 0; i < numbers.length; i++) {
+            Student student = all.get(i);
+            Capture.Copy copy = capture.get(student);
+            numbers[i] = student.getStudentNumber();
+            names[i] = student.getName();
+            loans[i] = new int[copy.loans.size()];
+            for (int j = 0; j < loans[i].length; j++) {
+                SpellBook spellbook = copy.loans.get(j);
+                loans[i][j] = spellbook.getSerialNumber();
+                renterByOrdinal[spellbook.getOrdinal()] = numbers[i];
+            }
+            studentHistories[i] = student.getRentalHistory().toArray(copy.historyLength);
+            for (int serial : studentHistories[i]) {
+                returnsByOrdinal[spellbookLookup.get(serial).getOrdinal()]++;
+            }
+        }
+
+        // A spellbook's returns are appended in order, so those before the mark come first
+        int[] renters = new int[books.length];
+        int[][] bookHistories = new int[books.length][];
+        for (int i = 0; i < books.length; i++) {
+            int ordinal = books[i].getOrdinal();
+            renters[i] = renterByOrdinal[ordinal];
+            bookHistories[i] = books[i].getRentalHistory().toArray(returnsByOrdinal[ordinal]);
+        }
+        return new Snapshot(next, capture.position, books, renters, bookHistories,
+                numbers, names, loans, studentHistories);
+    }
+
+    /**
+     * Saves a student's state for the snapshot being copied, if any, before a
+     * change to it. Called with the student's lock held, after the change is
+     * journaled.
+     * @param student The student about to change
+     * @param sequence The journal sequence number of the change, 0 if not journaled
+     */
+    private void preserve(Student student, long sequence) {
+        Capture capture = this.capture;
+        if (capture != null && capture.follows(sequence)) {
+            capture.save(student);
+        }
+    }
+
+    /**
+     * The students copied for a snapshot, each as it was at the snapshot's
+     * journal position. Without a journal, changes that find the capture
+     * started are the ones that follow it.
+     */
+    private static final class Capture {
+        /** A student's loans and history length. */
+        static final class Copy {
+            final List<SpellBook> loans; // in rental order
+            final int historyLength;
+
+            Copy(Student student) {
+                this.loans = student.getCurrentlyRenting();
+                this.historyLength = student.getRentalHistory().size();
+            }
+        }
+
+        final Journal.Position position;
+        private final Map<Student, Copy> copies = new ConcurrentHashMap<>();
+
+        Capture(Journal.Position position) {
+            this.position = position;
+        }
+
+        /** Checks whether a change with a journal sequence number comes after the position. */
+        boolean follows(long sequence) {
+            return sequence == 0 || sequence > position.sequence;
+        }
+
+        /** Copies a student unless it was already copied. Called with the student's lock held. */
+        void save(Student student) {
+            copies.computeIfAbsent(student, Copy::new);
+        }
+
+        Copy get(Student student) {
+            return copies.get(student);
+        }
+    }
+
+    /**
+     * Loads a binary snapshot into this Archive. Call on a new Archive, before
+     * any other change.
+     * @param filename The snapshot file path
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public void loadSnapshot(String filename) throws IOException {
+        if (!students.isEmpty() || !spellbooks.isEmpty() || journal != null) {
+            throw new IllegalStateException("Snapshots can only be loaded into a new Archive");
+        }
+        Snapshot snapshot = Snapshot.read(Paths.get(filename));
+
+        for (int[] history : snapshot.spellbookHistories) {
+            historyEntries.add(history.length);
+        }
+        restoreSpellbooks(snapshot.spellbooks);
+
+        students = new IntMap<>(snapshot.studentNumbers.length);
+        for (int i = 0; i < snapshot.studentNumbers.length; i++) {
+            Set<SpellBook> loans = new LinkedHashSet<>();
+            for (int serial : snapshot.loans[i]) {
+                loans.add(spellbookLookup.get(serial));
+            }
+            students.put(snapshot.studentNumbers[i], new Student(snapshot.studentNumbers[i], snapshot.studentNames[i],
+                    loans, new RentalHistory(snapshot.studentHistories[i]), toHistoryOrdinals(snapshot.studentHistories[i])));
+        }
+        nextStudentNumber.set(snapshot.nextStudentNumber);
+        restoredPosition = snapshot.journalPosition;
+    }
+
+    /**
+     * Gets the sorted distinct ordinals of the spellbooks in a restored history.
+     * @param history Serial numbers of returned spellbooks
+     */
+    private int[] toHistoryOrdinals(int[] history) {
+        int[] ordinals = new int[history.length];
+        for (int i = 0; i < history.length; i++) {
+            ordinals[i] = spellbookLookup.get(history[i]).getOrdinal();
+        }
+        Arrays.sort(ordinals);
+        int distinct = 0;
+        for (int ordinal : ordinals) {
+            if (distinct == 0 || ordinal != ordinals[distinct - 1]) {
+                ordinals[distinct++] = ordinal;
+            }
+        }
+        return distinct == ordinals.length ? ordinals : Arrays.copyOf(ordinals, distinct);
+    }
+
+    // ==================== Journal ====================
+
+    /**
+     * Opens a journal of every change to the Archive, first replaying the
+     * changes already in it. Call on a new Archive, before any other change,
+     * or right after loadSnapshot; only the changes made after the snapshot
+     * was saved are then replayed.
+     * @param filename The journal file path, created if it does not exist
+     * @param policy When changes are forced to disk
+     * @param syncIntervalMillis Milliseconds between forces with SyncPolicy.INTERVAL
+     * @return The number of changes replayed
+     * @throws IOException if the journal cannot be read or written, or does
+     *                     not continue from the loaded snapshot
+     */
+    public long openJournal(String filename, Journal.SyncPolicy policy, long syncIntervalMillis) throws IOException {
+        if (journal != null) {
+            throw new IllegalStateException("A journal is already open");
+        }
+        Journal opened = Journal.open(Paths.get(filename), policy, syncIntervalMillis, this, restoredPosition);
+        journal = opened;
+        return opened.getReplayedRecords();
+    }
+
+    /**
+     * Forces the journal to disk and closes it. Does nothing if no journal is open.
+     * @throws IOException if the journal cannot be written
+     */
+    public void closeJournal() throws IOException {
+        Journal closing = journal;
+        if (closing != null) {
+            journal = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * Commits a journal record, if a journal was open when it was appended.
+     */
+    private static void commit(Journal journal, long sequence) {
+        if (journal != null && sequence > 0) {
+            journal.commit(sequence);
+        }
+    }
+
+    /**
+     * Commits every journal record appended so far.
+     */
+    private void commitAll() {
+        Journal journal = this.journal;
+        if (journal != null) {
+            journal.commit(journal.getLastSequence());
+        }
+    }
+
     /**
      * Main method that delegates to HogwartsArchive.
      * This exists for compatibility with Ed platform testing.
@@ -0,0 +1,160 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by the Archive, so a recording shows
+ * which rentals, queries, loads and saves were running alongside GC pauses
+ * and lock contention.
+ *
+ * Each operation constructs its event, but the fields are only filled in
+ * when shouldCommit() reports that recording is enabled for it; otherwise
+ * begin() and shouldCommit() are cheap no-ops. The small event object is
+ * usually scalar-replaced once the JIT inlines the operation, though that
+ * is not guaranteed.
+ * Stack traces are off by default because the thread and time identify the
+ * operation; they can be turned on in a recording's settings.
+ *
+ * Usage: java -XX:StartFlightRecording=filename=archive.jfr -cp out HogwartsArchive
+ */
+final class ArchiveEvents {
+    private static final String CATEGORY = "Hogwarts Archive";
+
+    private ArchiveEvents() {
+    }
+
+    @Name("hogwarts.Rent")
+    @Label("Rent")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class RentEvent extends Event {
+        @Label("Student Number")
+        int studentNumber;
+
+        @Label("Serial Number")
+        int serialNumber;
+
+        @Label("Result Code")
+        @Description("Archive result code, 0 for success")
+        byte result;
+
+        @Label("Result")
+        String message;
+    }
+
+    @Name("hogwarts.Relinquish")
+    @Label("Relinquish")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class RelinquishEvent extends Event {
+        @Label("Student Number")
+        int studentNumber;
+
+        @Label("Serial Number")
+        int serialNumber;
+
+        @Label("Result Code")
+        @Description("Archive result code, 0 for success")
+        byte result;
+
+        @Label("Result")
+        String message;
+    }
+
+    @Name("hogwarts.RentalBatch")
+    @Label("Rental Batch")
+    @Description("A batch of rentals or returns for one student")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class RentalBatchEvent extends Event {
+        @Label("Operation")
+        @Description("RENT or RELINQUISH")
+        String operation;
+
+        @Label("Student Number")
+        int studentNumber;
+
+        @Label("All Or Nothing")
+        boolean allOrNothing;
+
+        @Label("Spellbooks")
+        int requested;
+
+        @Label("Succeeded")
+        int succeeded;
+    }
+
+    @Name("hogwarts.HistoryQuery")
+    @Label("History Query")
+    @Description("A COMMON query over the rental histories of several students")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class HistoryQueryEvent extends Event {
+        @Label("Mode")
+        @Description("ALL, ANY or ATLEAST")
+        String mode;
+
+        @Label("Student Numbers")
+        String studentNumbers;
+
+        @Label("Students")
+        int studentCount;
+
+        @Label("Threshold")
+        int threshold;
+
+        @Label("Matches")
+        int matches;
+    }
+
+    @Name("hogwarts.CollectionLoad")
+    @Label("Collection Load")
+    @Description("ADD COLLECTION from a CSV file")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CollectionLoadEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Added")
+        int added;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytes;
+
+        @Label("Result")
+        String message;
+    }
+
+    @Name("hogwarts.CollectionSave")
+    @Label("Collection Save")
+    @Description("SAVE COLLECTION or SAVE INCREMENTAL to a CSV file")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CollectionSaveEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Incremental")
+        @Description("Whether rows were appended to the previous save")
+        boolean incremental;
+
+        @Label("Rows Written")
+        long rows;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes;
+
+        @Label("Result")
+        String message;
+    }
+}
@@ -0,0 +1,525 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the console command set for one shared Archive on localhost.
+ *
+ * TCP line protocol: each line sent is one command, and each line received
+ * gets one response: the command output followed by a line holding a single
+ * ".". Output lines that start with "." have another "." put in front, as in
+ * SMTP. Commands may be pipelined; responses come back in order and are
+ * flushed once no more input is waiting. EXIT closes the connection.
+ *
+ * HTTP: GET /command?q=<command> runs one read-only command, and POST
+ * /command with Content-Type application/json runs every command in a JSON
+ * array of strings. The response is
+ * {"results":[{"command":"...","output":"..."},...]}. Requests must name a
+ * loopback Host, and any Origin must be a loopback page, so a web page the
+ * operator visits cannot drive the server; form-encoded posts are refused
+ * for the same reason, and a TCP connection that opens with an HTTP request
+ * line is dropped.
+ *
+ * Commands that read or write files by path (ADD SPELLBOOK, ADD COLLECTION
+ * and SAVE) are refused unless the operator allows them.
+ *
+ * Each connection runs on its own thread: a virtual thread where the runtime
+ * has them, otherwise a pooled daemon thread.
+ */
+public class ArchiveServer implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] END_OF_RESPONSE = ".\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Pattern HTTP_REQUEST_LINE = Pattern.compile("[A-Z]+ \\S+ HTTP/\\d(\\.\\d)?");
+    private static final Set<String> LOOPBACK_HOSTS = Set.of("localhost", "127.0.0.1", "[::1]");
+
+    private final Archive archive;
+    private final CommandMetrics metrics;
+    private final ResultCache cache; // null when disabled
+    private final ExecutorService connections;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile ServerSocket tcp;
+    private volatile HttpServer http;
+    private volatile boolean fileCommandsAllowed;
+
+    public ArchiveServer(Archive archive) {
+        this(archive, new CommandMetrics());
+    }
+
+    /**
+     * Creates a server whose sessions record into shared metrics.
+     * @param archive The shared Archive
+     * @param metrics The metrics reported by STATS
+     */
+    public ArchiveServer(Archive archive, CommandMetrics metrics) {
+        this(archive, metrics, null);
+    }
+
+    /**
+     * Creates a server whose sessions share metrics and a result cache.
+     * @param archive The shared Archive
+     * @param metrics The metrics reported by STATS
+     * @param cache The rendered output of read commands, or null to render every command
+     */
+    public ArchiveServer(Archive archive, CommandMetrics metrics, ResultCache cache) {
+        this.archive = archive;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.connections = newConnectionExecutor();
+    }
+
+    /**
+     * Sets whether sessions may run commands that read or write files by
+     * path. Off by default, since any local process can connect.
+     * @param allowed true to allow ADD SPELLBOOK, ADD COLLECTION and SAVE
+     */
+    public void setFileCommandsAllowed(boolean allowed) {
+        fileCommandsAllowed = allowed;
+    }
+
+    private HogwartsArchive newSession(Response response) {
+        HogwartsArchive session = new HogwartsArchive(archive, response.printer, metrics, cache);
+        session.setFileCommandsAllowed(fileCommandsAllowed);
+        return session;
+    }
+
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "archive-connection-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // ==================== TCP ====================
+
+    /**
+     * Starts accepting TCP connections on the loopback address.
+     * @param port The port, or 0 for any free port
+     * @return The port listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public int startTcp(int port) throws IOException {
+        ServerSocket socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        tcp = socket;
+        Thread acceptor = new Thread(() -> accept(socket), "archive-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return socket.getLocalPort();
+    }
+
+    private void accept(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                clients.add(client);
+                connections.execute(() -> serve(client));
+            } catch (IOException e) {
+                // Closed, or a connection failed before it was accepted
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE)) {
+            socket.setTcpNoDelay(true);
+            Response response = new Response();
+            HogwartsArchive session = newSession(response);
+
+            boolean open = true;
+            String line;
+            while (open && (line = in.readLine()) != null) {
+                String input = line.trim();
+                if (HTTP_REQUEST_LINE.matcher(input).matches()) {
+                    // A browser posting to this port; never run its body
+                    break;
+                }
+                if (!input.isEmpty()) {
+                    open = session.processCommand(input);
+                }
+                response.writeStuffedTo(out);
+                out.write(END_OF_RESPONSE);
+                // Answer a pipelined batch with as few writes as possible
+                if (!open || !in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // The client went away or the command failed; drop the connection
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Collects the output of one command.
+     */
+    private static class Response extends ByteArrayOutputStream {
+        final PrintStream printer = new PrintStream(this, false, StandardCharsets.UTF_8);
+
+        /** Writes the output with dot-stuffed lines and clears it. */
+        void writeStuffedTo(OutputStream out) throws IOException {
+            printer.flush();
+            int lineStart = 0;
+            for (int i = 0; i < count; i++) {
+                if (buf[i] == '\n') {
+                    writeLine(out, lineStart, i + 1);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < count) {
+                writeLine(out, lineStart, count);
+                out.write('\n');
+            }
+            reset();
+        }
+
+        private void writeLine(OutputStream out, int start, int end) throws IOException {
+            if (buf[start] == '.') {
+                out.write('.');
+            }
+            out.write(buf, start, end - start);
+        }
+    }
+
+    // ==================== HTTP ====================
+
+    /**
+     * Starts the HTTP/JSON endpoint on the loopback address.
+     * @param port The port, or 0 for any free port
+     * @return The port listened on
+     * @throws IOException if the port cannot be bound
+     */
+    public int startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        server.createContext("/command", this::handle);
+        server.setExecutor(connections);
+        server.start();
+        http = server;
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            int port = exchange.getLocalAddress().getPort();
+            if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"), port)
+                    || !isLoopbackOrigin(exchange.getRequestHeaders().getFirst("Origin"), port)) {
+                sendError(exchange, 403, "Forbidden.");
+                return;
+            }
+
+            List<String> commands;
+            if (exchange.getRequestMethod().equals("POST")) {
+                if (!isJson(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                    sendError(exchange, 415, "Content-Type must be application/json.");
+                    return;
+                }
+                try {
+                    commands = parseJsonStrings(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    sendError(exchange, 400, "Body must be a JSON array of strings.");
+                    return;
+                }
+            } else if (exchange.getRequestMethod().equals("GET")) {
+                String command = queryParameter(exchange.getRequestURI().getRawQuery(), "q");
+                if (!command.isBlank() && !HogwartsArchive.isReadCommand(command)) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendError(exchange, 405, "Only read commands may use GET.");
+                    return;
+                }
+                commands = List.of(command);
+            } else {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Response response = new Response();
+            HogwartsArchive session = newSession(response);
+            StringBuilder json = new StringBuilder("{\"results\":[");
+            boolean first = true;
+            for (String command : commands) {
+                String input = command.trim();
+                if (input.isEmpty()) {
+                    continue;
+                }
+                session.processCommand(input);
+                response.printer.flush();
+                json.append(first ? "{\"command\":" : ",{\"command\":");
+                appendJsonString(json, input);
+                json.append(",\"output\":");
+                appendJsonString(json, response.toString(StandardCharsets.UTF_8));
+                json.append('}');
+                response.reset();
+                first = false;
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        appendJsonString(json, message);
+        send(exchange, status, json.append('}').toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Checks that the Host header names this server by a loopback name, so a
+     * DNS name rebound to 127.0.0.1 is refused.
+     */
+    private static boolean isLoopbackHost(String host, int port) {
+        if (host == null) {
+            return false;
+        }
+        int colon = host.lastIndexOf(':');
+        if (colon < 0 || host.endsWith("]")) {
+            return LOOPBACK_HOSTS.contains(host.toLowerCase());
+        }
+        return LOOPBACK_HOSTS.contains(host.substring(0, colon).toLowerCase())
+                && host.substring(colon + 1).equals(Integer.toString(port));
+    }
+
+    /**
+     * Checks that a request sent by a browser comes from a page served on
+     * this machine. Requests without an Origin come from other programs.
+     */
+    private static boolean isLoopbackOrigin(String origin, int port) {
+        return origin == null
+                || (origin.startsWith("http://") && isLoopbackHost(origin.substring("http://".length()), port));
+    }
+
+    private static boolean isJson(String contentType) {
+        return contentType != null
+                && contentType.split(";", 2)[0].trim().equalsIgnoreCase("application/json");
+    }
+
+    /**
+     * Parses a JSON array of strings.
+     * @throws IllegalArgumentException if the text is anything else
+     */
+    static List<String> parseJsonStrings(String text) {
+        List<String> values = new ArrayList<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '[');
+        pos[0] = skipSpace(text, pos[0]);
+        boolean more = pos[0] >= text.length() || text.charAt(pos[0]) != ']';
+        while (more) {
+            values.add(parseJsonString(text, pos));
+            pos[0] = skipSpace(text, pos[0]);
+            more = pos[0] < text.length() && text.charAt(pos[0]) == ',';
+            if (more) {
+                pos[0] = skipSpace(text, pos[0] + 1);
+            }
+        }
+        expect(text, pos, ']');
+        if (skipSpace(text, pos[0]) != text.length()) {
+            throw new IllegalArgumentException("Trailing characters");
+        }
+        return values;
+    }
+
+    private static String parseJsonString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        int i = pos[0];
+        while (true) {
+            if (i >= text.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c = text.charAt(i++);
+            if (c == '"') {
+                break;
+            }
+            if (c < 0x20) {
+                throw new IllegalArgumentException("Control character in string");
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= text.length()) {
+                throw new IllegalArgumentException("Unterminated escape");
+            }
+            char escaped = text.charAt(i++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    value.append(escaped);
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > text.length()) {
+                        throw new IllegalArgumentException("Short unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad escape");
+            }
+        }
+        pos[0] = i;
+        return value.toString();
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (pos[0] >= text.length() || text.charAt(pos[0]) != c) {
+            throw new IllegalArgumentException("Expected " + c);
+        }
+        pos[0]++;
+    }
+
+    private static int skipSpace(String text, int i) {
+        while (i < text.length() && (text.charAt(i) == ' ' || text.charAt(i) == '\t'
+                || text.charAt(i) == '\n' || text.charAt(i) == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String queryParameter(String query, String name) {
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    // ==================== Shutdown ====================
+
+    /**
+     * Stops listening, closes every open connection and waits briefly for
+     * commands already running to finish.
+     */
+    @Override
+    public void close() {
+        try {
+            if (tcp != null) {
+                tcp.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        if (http != null) {
+            http.stop(0);
+        }
+        for (Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        connections.shutdown();
+        try {
+            connections.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed.countDown();
+    }
+
+    /**
+     * Waits until the server is closed.
+     */
+    public void awaitClose() {
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
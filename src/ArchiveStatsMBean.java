@@ -0,0 +1,12 @@
+/**
+ * JMX view of the Archive gauges.
+ */
+public interface ArchiveStatsMBean {
+    int getSpellbooks();
+
+    int getStudents();
+
+    int getActiveLoans();
+
+    long getHistoryEntries();
+}
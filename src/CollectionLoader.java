@@ -0,0 +1,207 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loads spellbook collections from CSV files.
+ *
+ * The file is memory-mapped and split into newline-aligned chunks that are
+ * parsed in parallel on the common fork-join pool by a byte-level parser.
+ * Parsed chunks are merged into the Archive in file order and in batches,
+ * so the result is the same as adding the rows one by one.
+ *
+ * Rows are parsed by CsvRowParser.
+ */
+public class CollectionLoader {
+    private static final int CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int MIN_PARALLEL_SIZE = 1024 * 1024; // smaller files are parsed as one chunk
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * The outcome of a bulk load.
+     */
+    public static class Result {
+        private final long rows;
+        private final int added;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        public Result(long rows, int added, long bytes, long elapsedNanos) {
+            this.rows = rows;
+            this.added = added;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** @return Number of well-formed rows parsed */
+        public long getRows() {
+            return rows;
+        }
+
+        /** @return Number of spellbooks added to the Archive */
+        public int getAdded() {
+            return added;
+        }
+
+        /** @return Size of the file read */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getRowsPerSecond() {
+            return elapsedNanos == 0 ? rows : rows * 1_000_000_000L / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows, " + added + " added in " + elapsedNanos / 1_000_000 + " ms ("
+                    + getRowsPerSecond() + " rows/s)";
+        }
+    }
+
+    /**
+     * Loads every spellbook in a CSV file into an Archive.
+     * Rows whose serial number already exists are skipped.
+     * @param filename The CSV file path
+     * @param archive The archive to add to
+     * @return The load result
+     * @throws FileNotFoundException if the file does not exist or is not a regular file
+     * @throws IOException if the file cannot be read
+     */
+    public static Result load(String filename, Archive archive) throws IOException {
+        long start = System.nanoTime();
+        Path path = Paths.get(filename);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException(filename);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> chunks = split(channel, size);
+
+            List<Callable<List<SpellBook>>> tasks = new ArrayList<>(chunks.size());
+            for (long[] chunk : chunks) {
+                tasks.add(() -> parseChunk(channel, chunk[0], chunk[1]));
+            }
+
+            List<Future<List<SpellBook>>> futures = tasks.size() == 1
+                    ? List.of(ForkJoinPool.commonPool().submit(tasks.get(0)))
+                    : ForkJoinPool.commonPool().invokeAll(tasks);
+
+            long rows = 0;
+            int added = 0;
+            for (Future<List<SpellBook>> future : futures) {
+                List<SpellBook> parsed = get(future);
+                rows += parsed.size();
+                for (int from = 0; from < parsed.size(); from += BATCH_SIZE) {
+                    int to = Math.min(parsed.size(), from + BATCH_SIZE);
+                    added += archive.addSpellbooks(parsed.subList(from, to));
+                }
+            }
+            return new Result(rows, added, size, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Waits for a parsed chunk, unwrapping I/O failures.
+     */
+    private static List<SpellBook> get(Future<List<SpellBook>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading collection", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Splits a file into chunks that start at the beginning of a line.
+     * @return List of {start, end} byte offsets
+     */
+    static List<long[]> split(FileChannel channel, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        if (size < MIN_PARALLEL_SIZE) {
+            chunks.add(new long[] {0, size});
+            return chunks;
+        }
+
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        long chunkSize = Math.min(CHUNK_SIZE, Math.max(MIN_PARALLEL_SIZE, size / (parallelism * 4L)));
+        long start = 0;
+        while (start < size) {
+            long end = start + chunkSize >= size ? size : nextLineStart(channel, start + chunkSize, size);
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the offset just past the first newline at or after a position.
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Parses every line in a region of the file.
+     * @return The spellbooks of the well-formed rows, in file order
+     */
+    private static List<SpellBook> parseChunk(FileChannel channel, long start, long end) throws IOException {
+        List<SpellBook> parsed = new ArrayList<>();
+        if (end <= start) {
+            return parsed;
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        CsvRowParser parser = new CsvRowParser();
+        int limit = buffer.limit();
+        int lineStart = 0;
+        boolean firstLine = start == 0;
+        while (lineStart < limit) {
+            int lineEnd = CsvRowParser.lineEnd(buffer, lineStart, limit);
+            SpellBook spellbook = parser.parse(buffer, lineStart, lineEnd, firstLine);
+            if (spellbook != null) {
+                parsed.add(spellbook);
+            }
+            firstLine = false;
+            lineStart = lineEnd + 1;
+        }
+        return parsed;
+    }
+}
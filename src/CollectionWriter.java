@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves spellbook collections to CSV files.
+ *
+ * A full save streams the rows through one reusable encode buffer into a
+ * temporary file next to the target, forces it to disk and renames it over
+ * the target, so the target is always either the old or the new collection.
+ * The writer remembers the last file it wrote; while that file is unchanged,
+ * spellbooks added since can be appended to it instead of rewriting it.
+ *
+ * Rows are written in the format read by CsvRowParser, as UTF-8. Fields that
+ * contain a comma or a quote are quoted.
+ */
+public class CollectionWriter {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final byte[] HEADER = "serialNumber,title,inventor,type\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder;
+
+    // The last file written, for incremental saves
+    private Path savedPath;
+    private long savedSize;
+    private long savedModified;
+    private int savedCount;
+    private int savedMaxSerial;
+
+    // The last write or append, for reporting
+    private int lastRowsWritten;
+    private long lastBytesWritten;
+
+    public CollectionWriter() {
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.encoder = StandardCharsets.UTF_8.newEncoder();
+    }
+
+    /**
+     * Replaces a file with a collection of spellbooks.
+     * @param path The CSV file
+     * @param spellbooks The spellbooks, sorted by serial number
+     * @throws IOException if the file cannot be written; the target is then left unchanged
+     */
+    public synchronized void write(Path path, Collection<SpellBook> spellbooks) throws IOException {
+        savedPath = null;
+        Path temp = tempFileFor(path);
+        int maxSerial = Integer.MIN_VALUE;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                buffer.clear();
+                buffer.put(HEADER);
+                for (SpellBook spellbook : spellbooks) {
+                    putRow(channel, spellbook);
+                    maxSerial = Math.max(maxSerial, spellbook.getSerialNumber());
+                }
+                flush(channel);
+                channel.force(true);
+                lastBytesWritten = channel.size();
+            }
+            moveIntoPlace(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        lastRowsWritten = spellbooks.size();
+        remember(path, spellbooks.size(), maxSerial);
+    }
+
+    /**
+     * Gets how many spellbooks are in a file this writer saved.
+     * @param path The CSV file
+     * @return The number of spellbooks, or -1 if the file was not the last one
+     *         written or has been changed since
+     */
+    public synchronized int getSavedCount(Path path) {
+        if (!path.equals(savedPath)) {
+            return -1;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.size() != savedSize || attributes.lastModifiedTime().toMillis() != savedModified) {
+                return -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return savedCount;
+    }
+
+    /**
+     * Appends spellbooks to the file last written, keeping it sorted.
+     * @param path The CSV file, which getSavedCount reported as unchanged
+     * @param spellbooks The spellbooks added since, sorted by serial number
+     * @return true if appended, false if a spellbook sorts before the end of
+     *         the file and the file must be rewritten instead
+     * @throws IOException if the file cannot be written; any partly appended rows are cut off
+     */
+    public synchronized boolean append(Path path, List<SpellBook> spellbooks) throws IOException {
+        if (!path.equals(savedPath)) {
+            return false;
+        }
+        if (spellbooks.isEmpty()) {
+            lastRowsWritten = 0;
+            lastBytesWritten = 0;
+            return true;
+        }
+        if (spellbooks.get(0).getSerialNumber() <= savedMaxSerial) {
+            return false;
+        }
+
+        savedPath = null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            try {
+                channel.position(end);
+                buffer.clear();
+                for (SpellBook spellbook : spellbooks) {
+                    putRow(channel, spellbook);
+                }
+                flush(channel);
+                channel.force(true);
+                lastBytesWritten = channel.size() - end;
+            } catch (IOException e) {
+                channel.truncate(end);
+                throw e;
+            }
+        }
+        lastRowsWritten = spellbooks.size();
+        remember(path, savedCount + spellbooks.size(), spellbooks.get(spellbooks.size() - 1).getSerialNumber());
+        return true;
+    }
+
+    /**
+     * Gets how many rows the last successful write or append wrote.
+     */
+    public synchronized int getLastRowsWritten() {
+        return lastRowsWritten;
+    }
+
+    /**
+     * Gets how many bytes the last successful write or append wrote.
+     */
+    public synchronized long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+
+    private void remember(Path path, int count, int maxSerial) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        savedSize = attributes.size();
+        savedModified = attributes.lastModifiedTime().toMillis();
+        savedCount = count;
+        savedMaxSerial = maxSerial;
+        savedPath = path;
+    }
+
+    /**
+     * Names a temporary file in the same directory as a target, so it can be
+     * renamed over the target atomically.
+     * @param path The target file
+     * @return A path that does not exist yet
+     */
+    static Path tempFileFor(Path path) {
+        return path.resolveSibling("." + path.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+    }
+
+    /**
+     * Renames a complete temporary file over its target, atomically where the
+     * file system supports it.
+     * @param temp The temporary file, already forced to disk
+     * @param path The target file
+     * @throws IOException if the file cannot be renamed
+     */
+    static void moveIntoPlace(Path temp, Path path) throws IOException {
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ==================== Encoding ====================
+
+    private void putRow(FileChannel channel, SpellBook spellbook) throws IOException {
+        if (buffer.remaining() < 12) {
+            flush(channel);
+        }
+        putInt(spellbook.getSerialNumber());
+        buffer.put((byte) ',');
+        putField(channel, spellbook.getTitle());
+        buffer.put((byte) ',');
+        putField(channel, spellbook.getInventor());
+        buffer.put((byte) ',');
+        putField(channel, spellbook.getType());
+        buffer.put((byte) '\n');
+    }
+
+    private void putInt(int value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+        }
+        long v = Math.abs((long) value);
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + v % 10));
+            v /= 10;
+        } while (v > 0);
+        // Digits were written least significant first
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    /**
+     * Encodes a text field, keeping room after it for a separator.
+     */
+    private void putField(FileChannel channel, String value) throws IOException {
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+            value = '"' + value.replace("\"", "\"\"") + '"';
+        }
+
+        CharBuffer chars = CharBuffer.wrap(value);
+        encoder.reset();
+        buffer.limit(buffer.capacity() - 1);
+        CoderResult result;
+        while ((result = encoder.encode(chars, buffer, true)).isOverflow()) {
+            flush(channel);
+            buffer.limit(buffer.capacity() - 1);
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush(channel);
+            buffer.limit(buffer.capacity() - 1);
+        }
+        buffer.limit(buffer.capacity());
+        if (buffer.remaining() < 12) {
+            flush(channel);
+        }
+    }
+
+    private void flush(FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Call counts, error counts and latency histograms for each command type,
+ * shared by every session of one Archive.
+ *
+ * The command types are fixed when the metrics are created, so counting a
+ * command is a map lookup and a counter increment. Reading the clock costs
+ * more than that on some virtual machines, so only one command in every
+ * sample interval is timed; counts and errors are exact, and the latency
+ * percentiles are estimated from the timed commands. The metrics and the
+ * Archive gauges are reported by the STATS command, as JMX MBeans under the
+ * "hogwarts" domain and by an optional periodic dump.
+ */
+public class CommandMetrics {
+    private static final String[] COMMANDS = {
+            "LIST", "NUMBER", "TYPE", "INVENTOR", "SEARCH", "SPELLBOOK", "STUDENT", "RENT", "RELINQUISH",
+            "ADD", "SAVE", "COMMON", "AVAILABILITY", "COMMANDS", "STATS", "EXIT"
+    };
+    private static final String OTHER = "OTHER";
+
+    private static final int DEFAULT_SAMPLE_INTERVAL = 8;
+
+    private final Map<String, CommandStats> byCommand = new LinkedHashMap<>();
+    private final CommandStats other;
+    private final int sampleMask;
+
+    public CommandMetrics() {
+        this(DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Creates metrics that time one command in every sample interval.
+     * @param sampleInterval A power of two; 1 times every command
+     */
+    public CommandMetrics(int sampleInterval) {
+        if (sampleInterval < 1 || Integer.bitCount(sampleInterval) != 1) {
+            throw new IllegalArgumentException("Sample interval must be a power of two: " + sampleInterval);
+        }
+        this.sampleMask = sampleInterval - 1;
+        for (String command : COMMANDS) {
+            byCommand.put(command, new CommandStats());
+        }
+        other = new CommandStats();
+        byCommand.put(OTHER, other);
+    }
+
+    /**
+     * Decides whether a command should be timed.
+     * @param sequence A per-session command counter
+     * @return true for one command in every sample interval
+     */
+    public boolean shouldTime(int sequence) {
+        return (sequence & sampleMask) == 0;
+    }
+
+    /**
+     * Gets the metrics of a command type.
+     * @param command The upper-case command word
+     * @return Its metrics, or those of OTHER for unknown commands
+     */
+    public CommandStats forCommand(String command) {
+        CommandStats stats = byCommand.get(command);
+        return stats != null ? stats : other;
+    }
+
+    /**
+     * Metrics of one command type.
+     */
+    public static class CommandStats implements CommandStatsMBean {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * Counts one command.
+         * @param failed Whether its result reported a failure
+         */
+        public void count(boolean failed) {
+            calls.increment();
+            if (failed) {
+                errors.increment();
+            }
+        }
+
+        /**
+         * Records the latency of a timed command.
+         * @param nanos How long it took
+         */
+        public void recordLatency(long nanos) {
+            latencies.record(nanos);
+        }
+
+        @Override
+        public long getCount() {
+            return calls.sum();
+        }
+
+        @Override
+        public long getTimed() {
+            return latencies.getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latencies.getMean() / 1000;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return latencies.getPercentile(50) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return latencies.getPercentile(99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return latencies.getPercentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return latencies.getMax() / 1000.0;
+        }
+    }
+
+    /**
+     * The Archive gauges, read when asked for.
+     */
+    public static class ArchiveStats implements ArchiveStatsMBean {
+        private final Archive archive;
+
+        public ArchiveStats(Archive archive) {
+            this.archive = archive;
+        }
+
+        @Override
+        public int getSpellbooks() {
+            return archive.getSpellbookCount();
+        }
+
+        @Override
+        public int getStudents() {
+            return archive.getStudentCount();
+        }
+
+        @Override
+        public int getActiveLoans() {
+            return archive.getRentedCount();
+        }
+
+        @Override
+        public long getHistoryEntries() {
+            return archive.getHistoryEntryCount();
+        }
+    }
+
+    // ==================== Reporting ====================
+
+    /**
+     * Writes the gauges and every command type that has been called, one line each.
+     * @param out Where to write
+     * @param archive The Archive the commands ran against
+     */
+    public void print(PrintStream out, Archive archive) {
+        out.println("Spellbooks: " + archive.getSpellbookCount() + ", students: " + archive.getStudentCount()
+                + ", active loans: " + archive.getRentedCount() + ", history entries: " + archive.getHistoryEntryCount());
+        for (Map.Entry<String, CommandStats> entry : byCommand.entrySet()) {
+            CommandStats stats = entry.getValue();
+            long count = stats.getCount();
+            if (count == 0) {
+                continue;
+            }
+            out.println(String.format("%s: %d calls, %d errors, %d timed, mean %.1f us, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                    entry.getKey(), count, stats.getErrors(), stats.getTimed(), stats.getMeanMicros(), stats.getP50Micros(),
+                    stats.getP99Micros(), stats.getP999Micros(), stats.getMaxMicros()));
+        }
+    }
+
+    /**
+     * Registers the Archive gauges and one MBean per command type with the
+     * platform MBean server, replacing any registered before.
+     * @param archive The Archive the commands run against
+     * @throws JMException if an MBean cannot be registered
+     */
+    public void registerMBeans(Archive archive) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        register(server, new ObjectName("hogwarts:type=Archive"), new ArchiveStats(archive), ArchiveStatsMBean.class);
+        for (Map.Entry<String, CommandStats> entry : byCommand.entrySet()) {
+            register(server, new ObjectName("hogwarts:type=Command,name=" + entry.getKey()), entry.getValue(),
+                    CommandStatsMBean.class);
+        }
+    }
+
+    private static <T> void register(MBeanServer server, ObjectName name, T bean, Class<T> type) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        // Wrapped, as nested classes do not match their MBean interface by name
+        server.registerMBean(new StandardMBean(bean, type), name);
+    }
+
+    /**
+     * Prints the metrics at a fixed interval on a daemon thread.
+     * @param out Where to write, typically standard error
+     * @param archive The Archive the commands run against
+     * @param intervalSeconds Seconds between dumps
+     */
+    public void startDump(PrintStream out, Archive archive, long intervalSeconds) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> {
+            synchronized (out) {
+                out.println("=== Archive stats ===");
+                print(out, archive);
+                out.flush();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
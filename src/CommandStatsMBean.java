@@ -0,0 +1,20 @@
+/**
+ * JMX view of the metrics of one command type.
+ */
+public interface CommandStatsMBean {
+    long getCount();
+
+    long getErrors();
+
+    long getTimed();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps the serial numbers in a CSV file to the position of their row.
+ *
+ * Built with one pass over the file, after which a single spellbook is read
+ * with one positioned read, and a serial number that is not in the file is
+ * rejected from the in-memory table without touching the file. When a serial
+ * number appears on several well-formed rows the first one wins, as it did
+ * when the file was scanned from the top.
+ */
+public class CsvOffsetIndex {
+    private final long size;
+    private final long lastModified;
+    private final int[] serials; // sorted
+    private final long[] offsets; // offsets[i] is the start of the row of serials[i]
+    private final int[] lengths; // lengths[i] is the length of that row in bytes
+
+    private CsvOffsetIndex(long size, long lastModified, int[] serials, long[] offsets, int[] lengths) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.serials = serials;
+        this.offsets = offsets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Scans a CSV file and indexes its well-formed rows.
+     * @param path The CSV file
+     * @param attributes The file's attributes, read before scanning
+     * @return The index
+     * @throws IOException if the file cannot be read
+     */
+    public static CsvOffsetIndex build(Path path, BasicFileAttributes attributes) throws IOException {
+        int rows = 0;
+        long[] keys = new long[1024]; // serial in the high half, row number in the low half
+        long[] rowOffsets = new long[1024];
+        int[] rowLengths = new int[1024];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CsvRowParser parser = new CsvRowParser();
+            List<long[]> chunks = CollectionLoader.split(channel, channel.size());
+            for (long[] chunk : chunks) {
+                if (chunk[1] <= chunk[0]) {
+                    continue;
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                int limit = buffer.limit();
+                int lineStart = 0;
+                boolean firstLine = chunk[0] == 0;
+                while (lineStart < limit) {
+                    int lineEnd = CsvRowParser.lineEnd(buffer, lineStart, limit);
+                    long serial = parser.parseSerial(buffer, lineStart, lineEnd, firstLine);
+                    if (serial != CsvRowParser.INVALID) {
+                        if (rows == keys.length) {
+                            keys = Arrays.copyOf(keys, rows * 2);
+                            rowOffsets = Arrays.copyOf(rowOffsets, rows * 2);
+                            rowLengths = Arrays.copyOf(rowLengths, rows * 2);
+                        }
+                        keys[rows] = (serial << 32) | rows;
+                        rowOffsets[rows] = chunk[0] + lineStart;
+                        rowLengths[rows] = lineEnd - lineStart;
+                        rows++;
+                    }
+                    firstLine = false;
+                    lineStart = lineEnd + 1;
+                }
+            }
+        }
+
+        // Sorting by serial then row number puts the first row of each serial first
+        Arrays.sort(keys, 0, rows);
+        int[] serials = new int[rows];
+        long[] offsets = new long[rows];
+        int[] lengths = new int[rows];
+        int distinct = 0;
+        for (int i = 0; i < rows; i++) {
+            int serial = (int) (keys[i] >> 32);
+            if (distinct > 0 && serials[distinct - 1] == serial) {
+                continue;
+            }
+            int row = (int) keys[i];
+            serials[distinct] = serial;
+            offsets[distinct] = rowOffsets[row];
+            lengths[distinct] = rowLengths[row];
+            distinct++;
+        }
+
+        return new CsvOffsetIndex(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                Arrays.copyOf(serials, distinct), Arrays.copyOf(offsets, distinct),
+                Arrays.copyOf(lengths, distinct));
+    }
+
+    /**
+     * Checks whether the file still matches the index.
+     * @param attributes The file's current attributes
+     * @return true if neither the size nor the modification time has changed
+     */
+    public boolean isCurrent(BasicFileAttributes attributes) {
+        return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+    }
+
+    /**
+     * Checks if the file has a well-formed row for a serial number.
+     * @param serialNumber The serial number
+     * @return true if the serial number is in the file
+     */
+    public boolean contains(int serialNumber) {
+        return Arrays.binarySearch(serials, serialNumber) >= 0;
+    }
+
+    /**
+     * Reads the row of a serial number.
+     * @param path The CSV file
+     * @param serialNumber The serial number
+     * @return The spellbook, or null if the serial number is not in the index or
+     *         the row no longer matches it
+     * @throws IOException if the file cannot be read
+     */
+    public SpellBook read(Path path, int serialNumber) throws IOException {
+        int i = Arrays.binarySearch(serials, serialNumber);
+        if (i < 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = offsets[i];
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        }
+
+        SpellBook spellbook = new CsvRowParser().parse(buffer, 0, buffer.limit(), offsets[i] == 0);
+        return spellbook != null && spellbook.getSerialNumber() == serialNumber ? spellbook : null;
+    }
+
+    /**
+     * Reads a file's attributes for validating an index.
+     * @param path The CSV file
+     * @return The attributes
+     * @throws IOException if the file does not exist or cannot be read
+     */
+    public static BasicFileAttributes attributesOf(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+}
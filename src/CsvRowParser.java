@@ -0,0 +1,223 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses spellbook rows of a CSV file from bytes.
+ *
+ * Rows follow the format serialNumber,title,inventor,type, with the same
+ * rules the line-by-line reader used: fields are trimmed, trailing empty
+ * fields are ignored, exactly four fields are required and the serial number
+ * follows Integer.parseInt. A first line starting with "serial" is a header.
+ * Fields may also be quoted to contain commas ("" inside quotes is a literal
+ * quote) but not line breaks.
+ *
+ * A parser reuses its scratch buffers, so each thread needs its own instance.
+ */
+public class CsvRowParser {
+    /** Returned instead of a serial number for headers and malformed rows. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final int FIELDS = 4;
+    private static final byte[] HEADER_PREFIX = "serial".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] line = new byte[256];
+    private byte[] field = new byte[256];
+    private final String[] values = new String[FIELDS];
+    private int fieldLength; // length of the last field copied into the field buffer
+
+    /**
+     * Parses one line into a spellbook.
+     * @param buffer The buffer holding the line
+     * @param start Offset of the first byte of the line
+     * @param end Offset of the line terminator, or the end of the buffer
+     * @param mayBeHeader true for the first line of the file
+     * @return The spellbook, or null if the line is a header or malformed
+     */
+    public SpellBook parse(ByteBuffer buffer, int start, int end, boolean mayBeHeader) {
+        long serial = scan(buffer, start, end, mayBeHeader, true);
+        if (serial == INVALID) {
+            return null;
+        }
+        return new SpellBook((int) serial, values[1], values[2], values[3]);
+    }
+
+    /**
+     * Checks that a line is a well-formed row without decoding its text fields.
+     * @param buffer The buffer holding the line
+     * @param start Offset of the first byte of the line
+     * @param end Offset of the line terminator, or the end of the buffer
+     * @param mayBeHeader true for the first line of the file
+     * @return The row's serial number, or INVALID if the line is a header or malformed
+     */
+    public long parseSerial(ByteBuffer buffer, int start, int end, boolean mayBeHeader) {
+        return scan(buffer, start, end, mayBeHeader, false);
+    }
+
+    /**
+     * Finds the end of the line starting at an offset.
+     * Like BufferedReader.readLine, a line ends at \n, \r or \r\n; the empty
+     * line between \r and \n is malformed and skipped by the parser.
+     * @param buffer The buffer
+     * @param from Offset of the first byte of the line
+     * @param limit Offset just past the last readable byte
+     * @return Offset of the line terminator, or limit
+     */
+    public static int lineEnd(ByteBuffer buffer, int from, int limit) {
+        byte b;
+        while (from < limit && (b = buffer.get(from)) != '\n' && b != '\r') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Splits a line into fields, decoding the text fields into values if asked.
+     * @return The serial number, or INVALID
+     */
+    private long scan(ByteBuffer buffer, int start, int end, boolean mayBeHeader, boolean decode) {
+        int length = end - start;
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+            field = new byte[line.length];
+        }
+        buffer.get(start, line, 0, length);
+
+        if (mayBeHeader && isHeader(length)) {
+            return INVALID;
+        }
+
+        // Like String.split(","), trailing empty fields are dropped before counting
+        int count = 0;
+        int lastNonEmpty = -1;
+        long serial = INVALID;
+        int pos = 0;
+        while (true) {
+            int fieldStart = pos;
+            int valueStart = firstNonBlank(pos, length);
+            if (valueStart < length && line[valueStart] == '"') {
+                pos = readQuoted(valueStart + 1, length);
+            } else {
+                pos = indexOfComma(pos, length);
+                copyTrimmed(fieldStart, pos);
+            }
+
+            if (pos > fieldStart) {
+                lastNonEmpty = count;
+            }
+            if (count == 0) {
+                serial = decodeSerial();
+            } else if (count < FIELDS) {
+                if (decode) {
+                    values[count] = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+                }
+            } else if (pos > fieldStart) {
+                return INVALID; // more than four fields
+            }
+            count++;
+
+            if (pos >= length) {
+                break;
+            }
+            pos++; // skip the comma
+        }
+
+        return lastNonEmpty == FIELDS - 1 ? serial : INVALID;
+    }
+
+    private boolean isHeader(int length) {
+        int i = firstNonBlank(0, length);
+        if (length - i < HEADER_PREFIX.length) {
+            return false;
+        }
+        for (int j = 0; j < HEADER_PREFIX.length; j++) {
+            if (line[i + j] != HEADER_PREFIX[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int firstNonBlank(int from, int to) {
+        while (from < to && isBlank(line[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private int indexOfComma(int from, int to) {
+        while (from < to && line[from] != ',') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Copies line[from, to) into the field buffer without surrounding whitespace.
+     */
+    private void copyTrimmed(int from, int to) {
+        from = firstNonBlank(from, to);
+        while (to > from && isBlank(line[to - 1])) {
+            to--;
+        }
+        System.arraycopy(line, from, field, 0, to - from);
+        fieldLength = to - from;
+    }
+
+    /**
+     * Copies a quoted field into the field buffer, unescaping doubled quotes.
+     * Text between the closing quote and the next comma is ignored.
+     * @param pos Offset just past the opening quote
+     * @return Offset of the comma ending the field, or the line length
+     */
+    private int readQuoted(int pos, int length) {
+        int n = 0;
+        while (pos < length) {
+            byte b = line[pos++];
+            if (b != '"') {
+                field[n++] = b;
+            } else if (pos < length && line[pos] == '"') {
+                field[n++] = '"';
+                pos++;
+            } else {
+                break;
+            }
+        }
+        fieldLength = n;
+        return indexOfComma(pos, length);
+    }
+
+    /**
+     * Parses the serial number in the field buffer with Integer.parseInt's rules.
+     * @return The serial number, or INVALID if it is not a valid int
+     */
+    private long decodeSerial() {
+        int i = 0;
+        boolean negative = false;
+        if (fieldLength > 0 && (field[0] == '-' || field[0] == '+')) {
+            negative = field[0] == '-';
+            i = 1;
+        }
+        if (i == fieldLength) {
+            return INVALID;
+        }
+
+        long value = 0;
+        for (; i < fieldLength; i++) {
+            int digit = field[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? INVALID : value;
+    }
+
+    private static boolean isBlank(byte b) {
+        // Matches String.trim(), which strips every character up to and including space
+        return b >= 0 && b <= ' ';
+    }
+}
@@ -1,20 +1,221 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.management.JMException;
 
 /**
  * Main class for the Hogwarts Archive application.
  */
 public class HogwartsArchive {
+    private static final int BATCH_BUFFER_SIZE = 1024 * 1024;
+    private static final int SEARCH_PAGE_SIZE = 20;
+
+    // Commands that never change the Archive or touch a file
+    private static final Set<String> READ_COMMANDS = Set.of(
+            "LIST", "NUMBER", "TYPE", "INVENTOR", "SEARCH", "SPELLBOOK", "STUDENT", "COMMON",
+            "AVAILABILITY", "STATS", "COMMANDS");
+
+    // What the output of a read command depends on, for the result cache
+    private static final int NOT_CACHED = 0;
+    private static final int CATALOG = 1;
+    private static final int CATALOG_AND_LOANS = 2;
+
     private Archive archive;
     private Scanner scanner;
+    private PrintStream out;
+    private CommandMetrics metrics; // shared by every session of the Archive
+    private ResultCache cache; // shared by every session of the Archive, null when disabled
+    private ByteArrayOutputStream rendered; // output of the current command while it is being cached
+    private boolean failed; // whether the current command reported an error
+    private int commandSequence = ThreadLocalRandom.current().nextInt(); // picks the commands to time
+    private long statsIntervalSeconds; // 0 for no periodic dump
+    private boolean batch;
+    private String scriptFile; // null to read the batch from standard input
+    private int tcpPort = -1; // -1 when not serving
+    private int httpPort = -1;
+    private boolean fileCommands = true; // whether ADD SPELLBOOK/COLLECTION and SAVE may use file paths
+    private boolean serverFileCommands = false;
 
     public HogwartsArchive() {
-        this.archive = new Archive();
+        this(new Archive(), System.out, new CommandMetrics(), new ResultCache(ResultCache.DEFAULT_CAPACITY));
         this.scanner = new Scanner(System.in);
     }
 
+    /**
+     * Creates a command session that shares an Archive, as used by the server
+     * for each connection.
+     * @param archive The shared Archive
+     * @param out Where command results are written
+     */
+    HogwartsArchive(Archive archive, PrintStream out) {
+        this(archive, out, new CommandMetrics());
+    }
+
+    /**
+     * Creates a command session that shares an Archive and its metrics.
+     * @param archive The shared Archive
+     * @param out Where command results are written
+     * @param metrics Where command counts and latencies are recorded
+     */
+    HogwartsArchive(Archive archive, PrintStream out, CommandMetrics metrics) {
+        this(archive, out, metrics, null);
+    }
+
+    /**
+     * Creates a command session that shares an Archive, its metrics and its result cache.
+     * @param archive The shared Archive
+     * @param out Where command results are written
+     * @param metrics Where command counts and latencies are recorded
+     * @param cache The rendered output of read commands, or null to render every command
+     */
+    HogwartsArchive(Archive archive, PrintStream out, CommandMetrics metrics, ResultCache cache) {
+        this.archive = archive;
+        this.out = out;
+        this.metrics = metrics;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts the application.
+     * Options: --snapshot <file> starts from a snapshot saved with SAVE SNAPSHOT;
+     * --journal <file> keeps a journal of every change and replays it on
+     * startup, after the snapshot; --fsync always|interval|never and
+     * --fsync-interval <ms> choose when the journal is forced to disk
+     * (default: always); --batch [file] runs a script without prompts;
+     * --port <n> and --http-port <n> serve the commands on localhost over a
+     * TCP line protocol and HTTP/JSON instead of the console;
+     * --stats-interval <seconds> prints the STATS report to standard error
+     * periodically; --stats-sample <n> times one command in n (a power of two,
+     * default 8) for the latency percentiles. Metrics are also registered as MBeans in the "hogwarts"
+     * JMX domain. --result-cache <n>[M] keeps up to n characters (or n million)
+     * of rendered read-command output shared by every session (default 16M,
+     * 0 disables it). The server refuses commands that read or write files
+     * by path unless --allow-file-commands is given.
+     */
     public static void main(String[] args) {
         HogwartsArchive app = new HogwartsArchive();
-        app.run();
+        if (!app.configure(args)) {
+            return;
+        }
+        try {
+            app.metrics.registerMBeans(app.archive);
+        } catch (JMException e) {
+            // Metrics stay available through STATS
+        }
+        if (app.statsIntervalSeconds > 0) {
+            app.metrics.startDump(System.err, app.archive, app.statsIntervalSeconds);
+        }
+        if (app.tcpPort >= 0 || app.httpPort >= 0) {
+            app.runServer();
+        } else if (app.batch) {
+            app.runBatch();
+        } else {
+            app.run();
+        }
+    }
+
+    /**
+     * Applies command line options.
+     * @param args The command line arguments
+     * @return false if the application cannot start
+     */
+    private boolean configure(String[] args) {
+        String snapshotFile = null;
+        String journalFile = null;
+        Journal.SyncPolicy policy = Journal.SyncPolicy.ALWAYS;
+        long syncIntervalMillis = 10;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--snapshot":
+                        snapshotFile = args[++i];
+                        break;
+                    case "--journal":
+                        journalFile = args[++i];
+                        break;
+                    case "--fsync":
+                        policy = Journal.SyncPolicy.valueOf(args[++i].toUpperCase());
+                        break;
+                    case "--fsync-interval":
+                        syncIntervalMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "--batch":
+                        batch = true;
+                        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                            scriptFile = args[++i];
+                        }
+                        break;
+                    case "--port":
+                        tcpPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--http-port":
+                        httpPort = Integer.parseInt(args[++i]);
+                        break;
+                    case "--allow-file-commands":
+                        serverFileCommands = true;
+                        break;
+                    case "--stats-interval":
+                        statsIntervalSeconds = Long.parseLong(args[++i]);
+                        break;
+                    case "--stats-sample":
+                        metrics = new CommandMetrics(Integer.parseInt(args[++i]));
+                        break;
+                    case "--result-cache":
+                        cache = parseCacheCapacity(args[++i]);
+                        break;
+                    default:
+                        out.println("Unknown option " + args[i] + ".");
+                        return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            out.println("Invalid options.");
+            return false;
+        }
+
+        if (snapshotFile != null) {
+            try {
+                archive.loadSnapshot(snapshotFile);
+            } catch (IOException e) {
+                out.println("Error reading snapshot.");
+                return false;
+            }
+        }
+        if (journalFile != null) {
+            try {
+                archive.openJournal(journalFile, policy, syncIntervalMillis);
+            } catch (IOException e) {
+                out.println("Error opening journal.");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --result-cache capacity: characters, or millions of them with an M suffix.
+     * @return The cache, or null if the capacity is 0
+     */
+    private static ResultCache parseCacheCapacity(String value) {
+        long capacity = value.toUpperCase().endsWith("M")
+                ? Long.parseLong(value.substring(0, value.length() - 1)) * 1024 * 1024
+                : Long.parseLong(value);
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative cache capacity");
+        }
+        return capacity == 0 ? null : new ResultCache(capacity);
     }
 
     /**
@@ -24,7 +225,7 @@ public class HogwartsArchive {
         boolean running = true;
 
         while (running) {
-            System.out.print("user: ");
+            out.print("user: ");
             String input = scanner.nextLine().trim();
 
             if (input.isEmpty()) {
@@ -35,11 +236,88 @@ public class HogwartsArchive {
 
             // Add blank line after each command output
             if (running) {
-                System.out.println();
+                out.println();
             }
         }
 
         scanner.close();
+        closeJournal();
+    }
+
+    /**
+     * Runs every command of a script file or of standard input without
+     * prompts, until EXIT or the end of the input. Output is buffered and
+     * written in large blocks; the command count and rate are reported on
+     * standard error at the end.
+     */
+    public void runBatch() {
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BATCH_BUFFER_SIZE), false);
+        long commands = 0;
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = new BufferedReader(openScript(), BATCH_BUFFER_SIZE)) {
+            String line;
+            boolean running = true;
+            while (running && (line = reader.readLine()) != null) {
+                String input = line.trim();
+                if (input.isEmpty()) {
+                    continue;
+                }
+                commands++;
+                running = processCommand(input);
+                if (running) {
+                    out.println();
+                }
+            }
+        } catch (IOException e) {
+            out.println("Error reading script.");
+        }
+
+        closeJournal();
+        out.flush();
+        long elapsed = System.nanoTime() - start;
+        long perSecond = elapsed == 0 ? commands : commands * 1_000_000_000L / elapsed;
+        System.err.println(commands + " commands in " + elapsed / 1_000_000 + " ms (" + perSecond + " commands/s).");
+    }
+
+    /**
+     * Serves the shared Archive until the process is stopped. The journal is
+     * closed by a shutdown hook once the server has stopped taking commands.
+     */
+    public void runServer() {
+        ArchiveServer server = new ArchiveServer(archive, metrics, cache);
+        server.setFileCommandsAllowed(serverFileCommands);
+        try {
+            if (tcpPort >= 0) {
+                out.println("Listening on TCP port " + server.startTcp(tcpPort) + ".");
+            }
+            if (httpPort >= 0) {
+                out.println("Listening on HTTP port " + server.startHttp(httpPort) + ".");
+            }
+        } catch (IOException e) {
+            out.println("Error starting server.");
+            server.close();
+            closeJournal();
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            closeJournal();
+        }));
+        server.awaitClose();
+    }
+
+    private Reader openScript() throws IOException {
+        return scriptFile != null ? new FileReader(scriptFile) : new InputStreamReader(System.in);
+    }
+
+    private void closeJournal() {
+        try {
+            archive.closeJournal();
+        } catch (IOException e) {
+            out.println("Error writing journal.");
+        }
     }
 
     /**
@@ -47,13 +325,26 @@ public class HogwartsArchive {
      * @param input The command string
      * @return false if EXIT command, true otherwise
      */
-    private boolean processCommand(String input) {
+    boolean processCommand(String input) {
+        boolean timed = metrics.shouldTime(++commandSequence);
+        long start = timed ? System.nanoTime() : 0;
         String[] tokens = input.split("\\s+", 2);
         String command = tokens[0].toUpperCase();
+        failed = false;
+        boolean running = dispatch(command, tokens.length > 1 ? tokens[1] : "");
+
+        CommandMetrics.CommandStats stats = metrics.forCommand(command);
+        stats.count(failed);
+        if (timed) {
+            stats.recordLatency(System.nanoTime() - start);
+        }
+        return running;
+    }
 
+    private boolean dispatch(String command, String args) {
         // Handle EXIT
         if (command.equals("EXIT")) {
-            System.out.println("Ending Archive process.");
+            out.println("Ending Archive process.");
             return false;
         }
 
@@ -63,13 +354,153 @@ public class HogwartsArchive {
             return true;
         }
 
+        // Handle STATS
+        if (command.equals("STATS")) {
+            metrics.print(out, archive);
+            if (cache != null) {
+                out.println(cache.getSummary());
+            }
+            return true;
+        }
+
+        if (!fileCommands && isFileCommand(command, args)) {
+            printError("File commands are disabled.");
+            return true;
+        }
+
         // Handle other commands
-        String args = tokens.length > 1 ? tokens[1] : "";
-        handleCommand(command, args);
+        int dependencies = cache != null ? cacheDependencies(command, args) : NOT_CACHED;
+        try {
+            if (dependencies == NOT_CACHED) {
+                handleCommand(command, args);
+            } else {
+                handleCachedCommand(command, args, dependencies);
+            }
+        } catch (Journal.UnavailableException e) {
+            printError("Journal unavailable.");
+        } catch (UncheckedIOException e) {
+            printError("Error writing journal.");
+        }
 
         return true;
     }
 
+    /**
+     * Prints the cached output of a read command, or runs it and caches what
+     * it prints. The versions are read before the command runs, so output
+     * that raced with a change is stale on the next lookup.
+     */
+    private void handleCachedCommand(String command, String args, int dependencies) {
+        String key = command + " " + args;
+        ResultCache.Entry entry = cache.get(key, archive);
+        if (entry != null) {
+            out.print(entry.getOutput());
+            failed = entry.isFailed();
+            return;
+        }
+
+        long catalogVersion = archive.getCatalogVersion();
+        long loanVersion = dependencies == CATALOG_AND_LOANS ? archive.getLoanVersion() : -1;
+        if (rendered == null) {
+            rendered = new ByteArrayOutputStream();
+        }
+        PrintStream console = out;
+        out = new PrintStream(rendered, false, StandardCharsets.UTF_8);
+        String output;
+        try {
+            handleCommand(command, args);
+            out.flush();
+            output = rendered.toString(StandardCharsets.UTF_8);
+        } finally {
+            out = console;
+            rendered.reset();
+        }
+        out.print(output);
+        cache.put(key, new ResultCache.Entry(catalogVersion, loanVersion, output, failed));
+    }
+
+    /**
+     * Gets what the output of a command depends on: read commands depend on
+     * the catalog, and those showing availability also on the loans.
+     * @return NOT_CACHED, CATALOG or CATALOG_AND_LOANS
+     */
+    private static int cacheDependencies(String command, String args) {
+        switch (command) {
+            case "NUMBER":
+            case "TYPE":
+            case "INVENTOR":
+            case "SEARCH":
+                return CATALOG;
+            case "AVAILABILITY":
+                return CATALOG_AND_LOANS;
+            case "LIST":
+                String[] parts = args.toUpperCase().split("\\s+");
+                switch (parts[0]) {
+                    case "TYPES":
+                    case "INVENTORS":
+                        return CATALOG;
+                    case "ALL":
+                    case "RANGE":
+                        // Only the long format shows who holds each spellbook
+                        return Arrays.asList(parts).contains("LONG") ? CATALOG_AND_LOANS : CATALOG;
+                    case "AVAILABLE":
+                        return CATALOG_AND_LOANS;
+                    default:
+                        return NOT_CACHED;
+                }
+            default:
+                return NOT_CACHED;
+        }
+    }
+
+    /**
+     * Sets whether commands may read and write files by path. Server
+     * sessions turn this off unless the operator allows it.
+     * @param allowed false to refuse ADD SPELLBOOK, ADD COLLECTION and SAVE
+     */
+    void setFileCommandsAllowed(boolean allowed) {
+        fileCommands = allowed;
+    }
+
+    /**
+     * Checks whether a command only reads the Archive.
+     * @param input The command line
+     * @return true if it changes nothing and touches no file
+     */
+    static boolean isReadCommand(String input) {
+        return READ_COMMANDS.contains(input.trim().split("\\s+", 2)[0].toUpperCase());
+    }
+
+    /**
+     * Checks whether a command reads or writes a file named by the user.
+     */
+    private static boolean isFileCommand(String command, String args) {
+        if (command.equals("SAVE")) {
+            return true;
+        }
+        if (command.equals("ADD")) {
+            String subCommand = args.split("\\s+", 2)[0].toUpperCase();
+            return subCommand.equals("SPELLBOOK") || subCommand.equals("COLLECTION");
+        }
+        return false;
+    }
+
+    /**
+     * Prints a message that reports a failed command.
+     */
+    private void printError(String message) {
+        failed = true;
+        out.println(message);
+    }
+
+    /**
+     * Prints a result message returned by the Archive, noting whether it reports a failure.
+     */
+    private void printResult(String result) {
+        failed |= Archive.isErrorResult(result);
+        out.println(result);
+    }
+
     /**
      * Handles all commands except EXIT and COMMANDS.
      */
@@ -87,6 +518,9 @@ public class HogwartsArchive {
             case "INVENTOR":
                 handleInventorCommand(args);
                 break;
+            case "SEARCH":
+                handleSearchCommand(args);
+                break;
             case "SPELLBOOK":
                 handleSpellbookCommand(args);
                 break;
@@ -108,6 +542,9 @@ public class HogwartsArchive {
             case "COMMON":
                 handleCommonCommand(args);
                 break;
+            case "AVAILABILITY":
+                handleAvailabilityCommand(args);
+                break;
             default:
                 // Ignore invalid commands
                 break;
@@ -138,88 +575,132 @@ public class HogwartsArchive {
             case "INVENTORS":
                 listInventors();
                 break;
+            case "RANGE":
+                listRange(parts);
+                break;
         }
     }
 
-    private void listAll(boolean isLong) {
-        if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
-            return;
-        }
-
-        List<SpellBook> spellbooks = archive.getAllSpellbooks();
+    /**
+     * Prints spellbooks in either short or long format.
+     * Long format entries are separated by a blank line.
+     */
+    private void printSpellbooks(List<SpellBook> spellbooks, boolean isLong) {
         for (int i = 0; i < spellbooks.size(); i++) {
             SpellBook s = spellbooks.get(i);
-            System.out.println(isLong ? s.getLongString() : s.getShortString());
+            out.println(isLong ? s.getLongString() : s.getShortString());
             // Add blank line after each long format entry, except the last one
             if (isLong && i < spellbooks.size() - 1) {
-                System.out.println();
+                out.println();
             }
         }
     }
 
+    private void listAll(boolean isLong) {
+        if (!archive.hasSpellbooks()) {
+            printError("No spellbooks in system.");
+            return;
+        }
+
+        printSpellbooks(archive.getAllSpellbooks(), isLong);
+    }
+
     private void listAvailable(boolean isLong) {
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
         List<SpellBook> available = archive.getAvailableSpellbooks();
 
         if (available.isEmpty()) {
-            System.out.println("No spellbooks available.");
+            out.println("No spellbooks available.");
             return;
         }
 
-        for (int i = 0; i < available.size(); i++) {
-            SpellBook s = available.get(i);
-            System.out.println(isLong ? s.getLongString() : s.getShortString());
-            // Add blank line after each long format entry, except the last one
-            if (isLong && i < available.size() - 1) {
-                System.out.println();
-            }
+        printSpellbooks(available, isLong);
+    }
+
+    private void listRange(String[] parts) {
+        // LIST RANGE <from> <to> [LONG]
+        if (parts.length < 3) {
+            return;
+        }
+
+        int from, to;
+        try {
+            from = Integer.parseInt(parts[1]);
+            to = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        if (!archive.hasSpellbooks()) {
+            printError("No spellbooks in system.");
+            return;
+        }
+
+        List<SpellBook> inRange = archive.getSpellbooksInRange(from, to);
+        if (inRange.isEmpty()) {
+            out.println("No spellbooks in range.");
+            return;
         }
+
+        boolean isLong = parts.length > 3 && parts[3].equals("LONG");
+        printSpellbooks(inRange, isLong);
     }
 
     private void listTypes() {
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
         List<String> types = archive.getAllTypes();
         for (String type : types) {
-            System.out.println(type);
+            out.println(type);
         }
     }
 
     private void listInventors() {
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
         List<String> inventors = archive.getAllInventors();
         for (String inventor : inventors) {
-            System.out.println(inventor);
+            out.println(inventor);
         }
     }
 
     // ==================== NUMBER COPIES Command ====================
 
     private void handleNumberCopies(String args) {
-        if (!args.toUpperCase().equals("COPIES")) {
+        String[] parts = args.split("\\s+", 2);
+        if (!parts[0].toUpperCase().equals("COPIES")) {
             return;
         }
 
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
-        Map<String, Integer> copies = archive.getNumberOfCopies();
+        Map<String, Integer> copies;
+        if (parts.length > 1) {
+            // NUMBER COPIES <title>
+            copies = archive.getNumberOfCopies(parts[1]);
+            if (copies.isEmpty()) {
+                out.println("No spellbooks with title " + parts[1] + ".");
+                return;
+            }
+        } else {
+            copies = archive.getNumberOfCopies();
+        }
+
         for (Map.Entry<String, Integer> entry : copies.entrySet()) {
-            System.out.println(entry.getKey() + ": " + entry.getValue());
+            out.println(entry.getKey() + ": " + entry.getValue());
         }
     }
 
@@ -227,36 +708,77 @@ public class HogwartsArchive {
 
     private void handleTypeCommand(String type) {
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
         List<SpellBook> spellbooks = archive.getSpellbooksByType(type);
         if (spellbooks.isEmpty()) {
-            System.out.println("No spellbooks with type " + type + ".");
+            out.println("No spellbooks with type " + type + ".");
             return;
         }
 
         for (SpellBook s : spellbooks) {
-            System.out.println(s.getShortString());
+            out.println(s.getShortString());
         }
     }
 
     private void handleInventorCommand(String inventor) {
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
         List<SpellBook> spellbooks = archive.getSpellbooksByInventor(inventor);
         if (spellbooks.isEmpty()) {
-            System.out.println("No spellbooks by " + inventor + ".");
+            out.println("No spellbooks by " + inventor + ".");
             return;
         }
 
         for (SpellBook s : spellbooks) {
-            System.out.println(s.getShortString());
+            out.println(s.getShortString());
+        }
+    }
+
+    // ==================== SEARCH Command ====================
+
+    private void handleSearchCommand(String args) {
+        // SEARCH [PAGE <n>] <text>
+        String[] parts = args.split("\\s+", 3);
+        int page = 1;
+        String text = args;
+        if (parts.length == 3 && parts[0].toUpperCase().equals("PAGE")) {
+            try {
+                page = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            text = parts[2];
+        }
+        if (page < 1 || text.isBlank()) {
+            return;
+        }
+
+        if (!archive.hasSpellbooks()) {
+            printError("No spellbooks in system.");
+            return;
+        }
+
+        TitleIndex.Page results = archive.searchSpellbooks(text, (long) (page - 1) * SEARCH_PAGE_SIZE, SEARCH_PAGE_SIZE);
+        if (results.getTotal() == 0) {
+            out.println("No spellbooks match " + text + ".");
+            return;
+        }
+        long pages = (results.getTotal() + SEARCH_PAGE_SIZE - 1) / SEARCH_PAGE_SIZE;
+        if (results.getSpellbooks().isEmpty()) {
+            out.println("No page " + page + ", there are " + pages + ".");
+            return;
+        }
+
+        for (SpellBook s : results.getSpellbooks()) {
+            out.println(s.getSerialNumber() + ": " + s.getShortString());
         }
+        out.println("Page " + page + " of " + pages + " (" + results.getTotal() + " spellbooks).");
     }
 
     // ==================== SPELLBOOK Commands ====================
@@ -290,13 +812,13 @@ public class HogwartsArchive {
         SpellBook spellbook = archive.getSpellbook(serialNumber);
         if (spellbook == null) {
             if (!archive.hasSpellbooks()) {
-                System.out.println("No spellbooks in system.");
+                printError("No spellbooks in system.");
             } else {
-                System.out.println("No such spellbook in system.");
+                printError("No such spellbook in system.");
             }
             return;
         }
-        System.out.println(isLong ? spellbook.getLongString() : spellbook.getShortString());
+        out.println(isLong ? spellbook.getLongString() : spellbook.getShortString());
     }
 
     private void spellbookHistory(String serialNumberStr) {
@@ -308,25 +830,23 @@ public class HogwartsArchive {
         }
 
         if (!archive.hasSpellbooks()) {
-            System.out.println("No such spellbook in system.");
+            printError("No such spellbook in system.");
             return;
         }
 
         SpellBook spellbook = archive.getSpellbook(serialNumber);
         if (spellbook == null) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
-        List<Integer> history = spellbook.getRentalHistory();
+        RentalHistory history = spellbook.getRentalHistory();
         if (history.isEmpty()) {
-            System.out.println("No rental history.");
+            out.println("No rental history.");
             return;
         }
 
-        for (Integer studentNumber : history) {
-            System.out.println(studentNumber);
-        }
+        history.forEach(studentNumber -> out.println(studentNumber));
     }
 
     // ==================== STUDENT Commands ====================
@@ -369,72 +889,77 @@ public class HogwartsArchive {
 
     private void studentInfo(int studentNumber) {
         if (!archive.hasStudents()) {
-            System.out.println("No students in system.");
+            printError("No students in system.");
             return;
         }
 
         Student student = archive.getStudent(studentNumber);
         if (student == null) {
-            System.out.println("No such student in system.");
+            printError("No such student in system.");
             return;
         }
 
-        System.out.println(student.toString());
+        out.println(student.toString());
     }
 
     private void studentSpellbooks(int studentNumber) {
         if (!archive.hasStudents()) {
-            System.out.println("No students in system.");
+            printError("No students in system.");
             return;
         }
 
         Student student = archive.getStudent(studentNumber);
 
         if (student == null) {
-            System.out.println("No such student in system.");
+            printError("No such student in system.");
             return;
         }
 
         List<SpellBook> renting = student.getCurrentlyRenting();
         if (renting.isEmpty()) {
-            System.out.println("Student not currently renting.");
+            out.println("Student not currently renting.");
             return;
         }
 
         for (SpellBook s : renting) {
-            System.out.println(s.getShortString());
+            out.println(s.getShortString());
         }
     }
 
     private void studentHistory(int studentNumber) {
 
         if (!archive.hasStudents()) {
-            System.out.println("No students in system.");
+            printError("No students in system.");
             return;
         }
         
         Student student = archive.getStudent(studentNumber);
 
         if (student == null) {
-            System.out.println("No such student in system.");
+            printError("No such student in system.");
             return;
         }
 
-        List<SpellBook> history = student.getRentalHistory();
+        RentalHistory history = student.getRentalHistory();
         if (history.isEmpty()) {
-            System.out.println("No rental history for student.");
+            out.println("No rental history for student.");
             return;
         }
 
-        for (SpellBook s : history) {
-            System.out.println(s.getShortString());
-        }
+        history.forEach(serialNumber ->
+                out.println(archive.getSpellbook(serialNumber).getShortString()));
     }
 
     // ==================== RENT and RELINQUISH Commands ====================
 
     private void handleRentCommand(String args) {
         String[] parts = args.split("\\s+");
+        boolean allOrNothing = parts[0].toUpperCase().equals("ATOMIC");
+        if (allOrNothing || isSerialList(parts)) {
+            // RENT [ATOMIC] <studentNumber> <serialNumber1> <serialNumber2> ...
+            handleBatchCommand(parts, allOrNothing, true);
+            return;
+        }
         if (parts.length < 2) {
             return;
         }
@@ -448,7 +973,7 @@ public class HogwartsArchive {
         }
 
         String result = archive.rentSpellbook(studentNumber, serialNumber);
-        System.out.println(result);
+        printResult(result);
     }
 
     private void handleRelinquishCommand(String args) {
@@ -468,7 +993,10 @@ public class HogwartsArchive {
             }
 
             String result = archive.relinquishAllSpellbooks(studentNumber);
-            System.out.println(result);
+            printResult(result);
+        } else if (parts[0].toUpperCase().equals("ATOMIC") || isSerialList(parts)) {
+            // RELINQUISH [ATOMIC] <studentNumber> <serialNumber1> <serialNumber2> ...
+            handleBatchCommand(parts, parts[0].toUpperCase().equals("ATOMIC"), false);
         } else if (parts.length >= 2) {
             // RELINQUISH <studentNumber> <serialNumber>
             int studentNumber, serialNumber;
@@ -480,7 +1008,61 @@ public class HogwartsArchive {
             }
 
             String result = archive.relinquishSpellbook(studentNumber, serialNumber);
-            System.out.println(result);
+            printResult(result);
+        }
+    }
+
+    /**
+     * Checks whether a plain RENT or RELINQUISH names several spellbooks: only
+     * when every token after the student number is a serial number. Otherwise
+     * the extra tokens are ignored, as for a single spellbook.
+     */
+    private static boolean isSerialList(String[] parts) {
+        if (parts.length <= 2) {
+            return false;
+        }
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                Integer.parseInt(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Rents or returns several spellbooks for one student and prints one line
+     * per serial number, or a single line if the student cannot be used.
+     */
+    private void handleBatchCommand(String[] parts, boolean allOrNothing, boolean rent) {
+        int first = allOrNothing ? 1 : 0;
+        if (parts.length < first + 2) {
+            return;
+        }
+
+        int studentNumber;
+        int[] serialNumbers = new int[parts.length - first - 1];
+        try {
+            studentNumber = Integer.parseInt(parts[first]);
+            for (int i = 0; i < serialNumbers.length; i++) {
+                serialNumbers[i] = Integer.parseInt(parts[first + 1 + i]);
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        byte[] results = rent
+                ? archive.rentSpellbooks(studentNumber, serialNumbers, allOrNothing)
+                : archive.relinquishSpellbooks(studentNumber, serialNumbers, allOrNothing);
+        byte failure = results[0];
+        if (failure == Archive.NO_STUDENTS || failure == Archive.NO_SUCH_STUDENT || failure == Archive.NO_SPELLBOOKS) {
+            printError(Archive.getResultMessage(failure));
+            return;
+        }
+        for (int i = 0; i < results.length; i++) {
+            failed |= results[i] != Archive.SUCCESS;
+            out.println(serialNumbers[i] + ": " + Archive.getResultMessage(results[i]));
         }
     }
 
@@ -515,7 +1097,7 @@ public class HogwartsArchive {
         }
 
         archive.addStudent(name);
-        System.out.println("Success.");
+        out.println("Success.");
     }
 
     private void addSpellbook(String args) {
@@ -533,7 +1115,7 @@ public class HogwartsArchive {
         }
 
         String result = archive.addSpellbookFromCSV(filename, serialNumber);
-        System.out.println(result);
+        printResult(result);
     }
 
     private void addCollection(String filename) {
@@ -542,7 +1124,7 @@ public class HogwartsArchive {
         }
 
         String result = archive.addCollectionFromCSV(filename);
-        System.out.println(result);
+        printResult(result);
     }
 
     // ==================== SAVE Command ====================
@@ -554,7 +1136,20 @@ public class HogwartsArchive {
             String filename = parts.length > 1 ? parts[1] : "";
             if (!filename.isEmpty()) {
                 String result = archive.saveCollectionToCSV(filename);
-                System.out.println(result);
+                printResult(result);
+            }
+        } else if (parts.length > 0 && parts[0].toUpperCase().equals("SNAPSHOT")) {
+            String filename = parts.length > 1 ? parts[1] : "";
+            if (!filename.isEmpty()) {
+                String result = archive.saveSnapshot(filename);
+                printResult(result);
+            }
+        } else if (parts.length > 0 && parts[0].toUpperCase().equals("INCREMENTAL")) {
+            // SAVE INCREMENTAL <filename>: append only the spellbooks added since the last save
+            String filename = parts.length > 1 ? parts[1] : "";
+            if (!filename.isEmpty()) {
+                String result = archive.saveCollectionToCSV(filename, true);
+                printResult(result);
             }
         }
     }
@@ -564,7 +1159,28 @@ public class HogwartsArchive {
     private void handleCommonCommand(String args) {
         String[] parts = args.split("\\s+");
 
-        if (parts.length < 2) {
+        // COMMON [ANY | ATLEAST <k>] <studentNumber1> <studentNumber2> ...
+        String mode = parts[0].toUpperCase();
+        int first = 0;
+        int threshold = 0;
+        if (mode.equals("ANY")) {
+            first = 1;
+        } else if (mode.equals("ATLEAST")) {
+            if (parts.length < 2) {
+                return;
+            }
+            try {
+                threshold = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (threshold < 1) {
+                return;
+            }
+            first = 2;
+        }
+
+        if (parts.length - first < 2) {
             return;
         }
 
@@ -572,84 +1188,133 @@ public class HogwartsArchive {
         List<Integer> studentNumbers = new ArrayList<>();
         Set<Integer> uniqueNumbers = new HashSet<>();
 
-        for (String part : parts) {
+        for (int i = first; i < parts.length; i++) {
+            String part = parts[i];
             try {
                 int num = Integer.parseInt(part);
                 if (uniqueNumbers.contains(num)) {
-                    System.out.println("Duplicate students provided.");
+                    printError("Duplicate students provided.");
                     return;
                 }
                 uniqueNumbers.add(num);
                 studentNumbers.add(num);
             } catch (NumberFormatException e) {
-                System.out.println("No such student in system.");
+                printError("No such student in system.");
                 return;
             }
         }
 
         if (!archive.hasStudents()) {
-            System.out.println("No students in system.");
+            printError("No students in system.");
             return;
         }
 
         // Check if all students exist
         for (int num : studentNumbers) {
             if (archive.getStudent(num) == null) {
-                System.out.println("No such student in system.");
+                printError("No such student in system.");
                 return;
             }
         }
 
         // Check if spellbooks exist
         if (!archive.hasSpellbooks()) {
-            System.out.println("No spellbooks in system.");
+            printError("No spellbooks in system.");
             return;
         }
 
-        List<SpellBook> common = archive.findCommonSpellbooks(studentNumbers);
+        List<SpellBook> common;
+        if (mode.equals("ANY")) {
+            common = archive.findAnySpellbooks(studentNumbers);
+        } else if (mode.equals("ATLEAST")) {
+            common = archive.findSpellbooksRentedByAtLeast(studentNumbers, threshold);
+        } else {
+            common = archive.findCommonSpellbooks(studentNumbers);
+        }
 
         if (common.isEmpty()) {
-            System.out.println("No common spellbooks.");
+            out.println("No common spellbooks.");
             return;
         }
 
         for (SpellBook s : common) {
-            System.out.println(s.getShortString());
+            out.println(s.getShortString());
+        }
+    }
+
+    // ==================== AVAILABILITY Command ====================
+
+    private void handleAvailabilityCommand(String type) {
+        if (!archive.hasSpellbooks()) {
+            printError("No spellbooks in system.");
+            return;
+        }
+
+        if (!type.isEmpty()) {
+            // AVAILABILITY <type>
+            int available = archive.getAvailableCount(type);
+            int rented = archive.getRentedCount(type);
+            if (available + rented == 0) {
+                out.println("No spellbooks with type " + type + ".");
+                return;
+            }
+            out.println(type + ": " + available + " available, " + rented + " rented.");
+            return;
+        }
+
+        out.println("Total: " + archive.getAvailableCount() + " available, "
+                + archive.getRentedCount() + " rented.");
+        for (String t : archive.getAllTypes()) {
+            out.println(t + ": " + archive.getAvailableCount(t) + " available, "
+                    + archive.getRentedCount(t) + " rented.");
         }
     }
 
     // ==================== COMMANDS Help ====================
 
     private void printCommands() {
-        System.out.println("EXIT ends the archive process");
-        System.out.println("COMMANDS outputs this help string");
-        System.out.println();
-        System.out.println("LIST ALL [LONG] outputs either the short or long string for all spellbooks");
-        System.out.println("LIST AVAILABLE [LONG] outputs either the short or long string for all available spellbooks");
-        System.out.println("NUMBER COPIES outputs the number of copies of each spellbook");
-        System.out.println("LIST TYPES outputs the name of every type in the system");
-        System.out.println("LIST INVENTORS outputs the name of every inventor in the system");
-        System.out.println();
-        System.out.println("TYPE <type> outputs the short string of every spellbook with the specified type");
-        System.out.println("INVENTOR <inventor> outputs the short string of every spellbook by the specified inventor");
-        System.out.println();
-        System.out.println("SPELLBOOK <serialNumber> [LONG] outputs either the short or long string for the specified spellbook");
-        System.out.println("SPELLBOOK HISTORY <serialNumber> outputs the rental history of the specified spellbook");
-        System.out.println();
-        System.out.println("STUDENT <studentNumber> outputs the information of the specified student");
-        System.out.println("STUDENT SPELLBOOKS <studentNumber> outputs the spellbooks currently rented by the specified student");
-        System.out.println("STUDENT HISTORY <studentNumber> outputs the rental history of the specified student");
-        System.out.println();
-        System.out.println("RENT <studentNumber> <serialNumber> loans out the specified spellbook to the given student");
-        System.out.println("RELINQUISH <studentNumber> <serialNumber> returns the specified spellbook from the student");
-        System.out.println("RELINQUISH ALL <studentNumber> returns all spellbooks rented by the specified student");
-        System.out.println();
-        System.out.println("ADD STUDENT <name> adds a student to the system");
-        System.out.println("ADD SPELLBOOK <filename> <serialNumber> adds a spellbook to the system");
-        System.out.println();
-        System.out.println("ADD COLLECTION <filename> adds a collection of spellbooks to the system");
-        System.out.println("SAVE COLLECTION <filename> saves the system to a csv file");
-        System.out.println();
-        System.out.println("COMMON <studentNumber1> <studentNumber2> ... outputs the common spellbooks in students' history");
+        out.println("EXIT ends the archive process");
+        out.println("COMMANDS outputs this help string");
+        out.println();
+        out.println("LIST ALL [LONG] outputs either the short or long string for all spellbooks");
+        out.println("LIST AVAILABLE [LONG] outputs either the short or long string for all available spellbooks");
+        out.println("LIST RANGE <from> <to> [LONG] outputs either the short or long string for spellbooks with serial numbers in the range");
+        out.println("NUMBER COPIES outputs the number of copies of each spellbook");
+        out.println("NUMBER COPIES <title> outputs the number of copies of the spellbooks with the specified title");
+        out.println("LIST TYPES outputs the name of every type in the system");
+        out.println("LIST INVENTORS outputs the name of every inventor in the system");
+        out.println();
+        out.println("TYPE <type> outputs the short string of every spellbook with the specified type");
+        out.println("INVENTOR <inventor> outputs the short string of every spellbook by the specified inventor");
+        out.println("SEARCH [PAGE <n>] <text> outputs the serial number and short string of the spellbooks whose titles best match the words, 20 per page");
+        out.println();
+        out.println("SPELLBOOK <serialNumber> [LONG] outputs either the short or long string for the specified spellbook");
+        out.println("SPELLBOOK HISTORY <serialNumber> outputs the rental history of the specified spellbook");
+        out.println();
+        out.println("STUDENT <studentNumber> outputs the information of the specified student");
+        out.println("STUDENT SPELLBOOKS <studentNumber> outputs the spellbooks currently rented by the specified student");
+        out.println("STUDENT HISTORY <studentNumber> outputs the rental history of the specified student");
+        out.println();
+        out.println("RENT <studentNumber> <serialNumber> loans out the specified spellbook to the given student");
+        out.println("RENT [ATOMIC] <studentNumber> <serialNumber1> <serialNumber2> ... loans out several spellbooks, all or none with ATOMIC");
+        out.println("RELINQUISH <studentNumber> <serialNumber> returns the specified spellbook from the student");
+        out.println("RELINQUISH [ATOMIC] <studentNumber> <serialNumber1> <serialNumber2> ... returns several spellbooks, all or none with ATOMIC");
+        out.println("RELINQUISH ALL <studentNumber> returns all spellbooks rented by the specified student");
+        out.println();
+        out.println("ADD STUDENT <name> adds a student to the system");
+        out.println("ADD SPELLBOOK <filename> <serialNumber> adds a spellbook to the system");
+        out.println();
+        out.println("ADD COLLECTION <filename> adds a collection of spellbooks to the system");
+        out.println("SAVE COLLECTION <filename> saves the system to a csv file");
+        out.println("SAVE SNAPSHOT <filename> saves the whole system state to a binary snapshot file");
+        out.println("SAVE INCREMENTAL <filename> appends the spellbooks added since the last save to the csv file");
+        out.println();
+        out.println("COMMON <studentNumber1> <studentNumber2> ... outputs the common spellbooks in students' history");
+        out.println("COMMON ANY <studentNumber1> <studentNumber2> ... outputs the spellbooks in any of the students' history");
+        out.println("COMMON ATLEAST <k> <studentNumber1> <studentNumber2> ... outputs the spellbooks in at least k of the students' history");
+        out.println();
+        out.println("AVAILABILITY [type] outputs the number of available and rented spellbooks, overall and per type");
+        out.println();
+        out.println("STATS outputs call counts, errors and latency percentiles per command, and the archive totals");
     }
 }
\ No newline at end of file
@@ -0,0 +1,185 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An insert-only open-addressing map from int keys to objects.
+ * Keys live in a primitive array, so a lookup neither boxes the key nor
+ * follows an entry pointer. Writers are serialized on the map; readers take
+ * no lock and always see either the old or the new value of a key.
+ * @param <V> The value type
+ */
+public class IntMap<V> {
+    private static final int EMPTY = Integer.MIN_VALUE; // marks a free slot
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    /**
+     * The key and value arrays of one table generation, published together.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    private volatile Table table;
+    private volatile Object emptyKeyValue; // value stored under Integer.MIN_VALUE, which marks free slots
+    private volatile int size;
+
+    public IntMap() {
+        this(16);
+    }
+
+    /**
+     * Creates a map sized to hold the given number of entries without resizing.
+     * @param expectedSize The expected number of entries
+     */
+    public IntMap(int expectedSize) {
+        // Keep the table at most half full so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize * 2 - 1)) << 1;
+        this.table = new Table(capacity);
+    }
+
+    /**
+     * Gets the value stored under a key.
+     * @param key The key
+     * @return The value, or null if not present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key == EMPTY) {
+            return (V) emptyKeyValue;
+        }
+
+        Table t = table;
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask) {
+            int k = (int) KEYS.getAcquire(t.keys, i);
+            if (k == key) {
+                return (V) VALUES.getAcquire(t.values, i);
+            }
+            if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Checks if a key is present.
+     * @param key The key
+     * @return true if the key has a value
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Stores a value under a key.
+     * @param key The key
+     * @param value The value, not null
+     * @return The previous value, or null if the key was absent
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value) {
+        Objects.requireNonNull(value);
+        if (key == EMPTY) {
+            V previous = (V) emptyKeyValue;
+            emptyKeyValue = value;
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        }
+
+        Table t = table;
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask) {
+            int k = t.keys[i];
+            if (k == key) {
+                V previous = (V) t.values[i];
+                VALUES.setRelease(t.values, i, value);
+                return previous;
+            }
+            if (k == EMPTY) {
+                // Write the value before the key so a reader that finds the key sees the value
+                t.values[i] = value;
+                KEYS.setRelease(t.keys, i, key);
+                size++;
+                if (size * 2 > t.keys.length) {
+                    resize();
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of entries.
+     * @return The size
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets a snapshot of all values in no particular order.
+     * @return List of values
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        if (emptyKeyValue != null) {
+            result.add((V) emptyKeyValue);
+        }
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != EMPTY) {
+                result.add((V) t.values[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Doubles the table. Called with the map's lock held.
+     */
+    private void resize() {
+        Table old = table;
+        Table grown = new Table(old.keys.length * 2);
+        for (int j = 0; j < old.keys.length; j++) {
+            int key = old.keys[j];
+            if (key == EMPTY) {
+                continue;
+            }
+            int i = hash(key) & grown.mask;
+            while (grown.keys[i] != EMPTY) {
+                i = (i + 1) & grown.mask;
+            }
+            grown.keys[i] = key;
+            grown.values[i] = old.values[j];
+        }
+        // Publishing the filled table through the volatile field makes its contents visible
+        table = grown;
+    }
+
+    /**
+     * Spreads dense keys such as consecutive serial numbers across the table.
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
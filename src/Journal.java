@@ -0,0 +1,602 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only binary journal of Archive mutations.
+ *
+ * Every student registration, spellbook addition, rental and return is
+ * appended as a record before it becomes visible, and the Archive commits the
+ * record before reporting success. Replaying the journal into an empty
+ * Archive rebuilds the students, the catalog, the active loans and the rental
+ * histories.
+ *
+ * Records are buffered in memory. With SyncPolicy.ALWAYS a commit waits until
+ * its record is forced to disk; concurrent commits share one write and one
+ * fsync (group commit), so the cost of the fsync is spread over every
+ * operation that arrived while the previous one was running.
+ *
+ * Records are numbered from 1 in the order of the file, across restarts. A
+ * snapshot stores the journal's id and the number of its last record, so a
+ * journal opened after loading that snapshot replays only the records that
+ * follow it.
+ *
+ * File layout: int magic, long journal id, then the records. Record layout:
+ * int length of the body, body (byte type, then fields), int CRC32C of the
+ * body. A torn record at the end of the file, left by a crash during a
+ * write, is dropped on replay. Appending to a closed or failed journal throws
+ * UnavailableException.
+ */
+public class Journal implements Closeable {
+    /**
+     * When committed records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /** Every commit waits for an fsync of its record, shared with concurrent commits. */
+        ALWAYS,
+        /** Commits write to the OS; a background thread forces the file at a fixed interval. */
+        INTERVAL,
+        /** Commits write to the OS and the file is only forced on close. */
+        NEVER
+    }
+
+    /**
+     * A point in a journal: its id and the number of the last record before
+     * that point. A snapshot records the position it was taken at.
+     */
+    public static class Position {
+        /** The position of a snapshot taken with no journal open. */
+        public static final Position NONE = new Position(0, 0);
+
+        final long journalId; // 0 for no journal
+        final long sequence;
+
+        Position(long journalId, long sequence) {
+            this.journalId = journalId;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Thrown when a record cannot be appended because the journal has been
+     * closed or an earlier write failed. Nothing was appended, so the change
+     * can be undone and reported as not made.
+     */
+    public static class UnavailableException extends IllegalStateException {
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final int MAGIC = 0x48414A32; // "HAJ2"
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int REPLAY_BATCH_SIZE = 4096;
+
+    static final byte ADD_STUDENT = 1;
+    static final byte ADD_SPELLBOOK = 2;
+    static final byte RENT = 3;
+    static final byte RELINQUISH = 4;
+
+    private final FileChannel channel;
+    private final long id; // random, identifies the file to snapshots
+    private final SyncPolicy policy;
+    private final Thread syncThread; // null unless the policy is INTERVAL
+    private final long replayedRecords;
+
+    private final Object lock = new Object();
+    private final CRC32C crc = new CRC32C(); // guarded by lock
+    private ByteBuffer pending; // records not yet written, guarded by lock
+    private ByteBuffer spare; // written buffer kept for reuse, owned by the flushing thread
+    private int bodyStart; // offset in pending of the body being appended
+    private long appended; // sequence number of the last appended record
+    private long written; // sequence number of the last record written to the OS
+    private long synced; // sequence number of the last record forced to disk
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure; // first write failure; the journal is unusable afterwards
+
+    private Journal(FileChannel channel, long id, SyncPolicy policy, long syncIntervalMillis,
+                    long records, long replayedRecords) {
+        this.channel = channel;
+        this.id = id;
+        this.policy = policy;
+        this.replayedRecords = replayedRecords;
+        this.appended = records;
+        this.written = records;
+        this.synced = records;
+        this.pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        if (policy == SyncPolicy.INTERVAL) {
+            syncThread = new Thread(() -> syncPeriodically(syncIntervalMillis), "journal-sync");
+            syncThread.setDaemon(true);
+            syncThread.start();
+        } else {
+            syncThread = null;
+        }
+    }
+
+    /**
+     * Opens a journal, replaying its records into an Archive first.
+     * A new file is created if none exists.
+     * @param path The journal file
+     * @param policy When commits are forced to disk
+     * @param syncIntervalMillis Milliseconds between forces with SyncPolicy.INTERVAL
+     * @param archive The Archive to replay into, without a journal attached
+     * @param from The position of the snapshot the Archive was loaded from, whose
+     *             records are skipped, or null to replay every record
+     * @return The journal, positioned after its last complete record
+     * @throws IOException if the file cannot be read or written, is not a journal,
+     *                     or does not continue from the snapshot
+     */
+    public static Journal open(Path path, SyncPolicy policy, long syncIntervalMillis, Archive archive,
+                               Position from) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long id;
+            long records = 0;
+            long replayed = 0;
+            long end;
+            if (channel.size() == 0) {
+                id = newId();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(id).flip();
+                channel.write(header, 0);
+                channel.force(true);
+                end = HEADER_SIZE;
+            } else {
+                channel.position(0);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel), 1024 * 1024));
+                if (channel.size() < HEADER_SIZE || in.readInt() != MAGIC) {
+                    throw new IOException("Not a journal file");
+                }
+                id = in.readLong();
+                // Records of another journal cannot follow the snapshot, so none are applied
+                long skip = from == null ? 0 : from.journalId == id ? from.sequence : Long.MAX_VALUE;
+                Replay replay = new Replay(in, channel.size(), archive, skip);
+                records = replay.run();
+                replayed = Math.max(0, records - skip);
+                end = replay.end;
+                if (from != null && from.journalId != id && records > 0) {
+                    throw new IOException("Journal was not open when the snapshot was saved");
+                }
+                if (from != null && from.journalId == id && records < from.sequence) {
+                    throw new IOException("Journal ends before the snapshot");
+                }
+            }
+
+            // Drop a torn record left by a crash so new records follow the last complete one
+            if (channel.size() > end) {
+                channel.truncate(end);
+                channel.force(true);
+            }
+            channel.position(end);
+            return new Journal(channel, id, policy, syncIntervalMillis, records, replayed);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /** @return Number of records replayed when the journal was opened */
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public SyncPolicy getPolicy() {
+        return policy;
+    }
+
+    // ==================== Appending ====================
+
+    /**
+     * Appends a student registration.
+     * @return The record's sequence number, for commit
+     */
+    public long logAddStudent(int studentNumber, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            ByteBuffer body = begin(1 + 4 + 4 + nameBytes.length);
+            body.put(ADD_STUDENT).putInt(studentNumber).putInt(nameBytes.length).put(nameBytes);
+            return end(body);
+        }
+    }
+
+    /**
+     * Appends a spellbook addition.
+     * @return The record's sequence number, for commit
+     */
+    public long logAddSpellbook(SpellBook spellbook) {
+        byte[] title = spellbook.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] inventor = spellbook.getInventor().getBytes(StandardCharsets.UTF_8);
+        byte[] type = spellbook.getType().getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            ByteBuffer body = begin(1 + 4 + 12 + title.length + inventor.length + type.length);
+            body.put(ADD_SPELLBOOK).putInt(spellbook.getSerialNumber());
+            body.putInt(title.length).put(title);
+            body.putInt(inventor.length).put(inventor);
+            body.putInt(type.length).put(type);
+            return end(body);
+        }
+    }
+
+    /**
+     * Appends a rental.
+     * @return The record's sequence number, for commit
+     */
+    public long logRent(int studentNumber, int serialNumber) {
+        return logLoan(RENT, studentNumber, serialNumber);
+    }
+
+    /**
+     * Appends a return.
+     * @return The record's sequence number, for commit
+     */
+    public long logRelinquish(int studentNumber, int serialNumber) {
+        return logLoan(RELINQUISH, studentNumber, serialNumber);
+    }
+
+    /**
+     * Appends the rentals of a batch as consecutive records.
+     * @return The sequence number of the last record, for commit, or 0 if there are none
+     */
+    public long logRents(int studentNumber, Collection<SpellBook> spellbooks) {
+        return logLoans(RENT, studentNumber, spellbooks);
+    }
+
+    /**
+     * Appends the returns of a batch as consecutive records.
+     * @return The sequence number of the last record, for commit, or 0 if there are none
+     */
+    public long logRelinquishes(int studentNumber, Collection<SpellBook> spellbooks) {
+        return logLoans(RELINQUISH, studentNumber, spellbooks);
+    }
+
+    private long logLoan(byte type, int studentNumber, int serialNumber) {
+        synchronized (lock) {
+            ByteBuffer body = begin(1 + 4 + 4);
+            body.put(type).putInt(studentNumber).putInt(serialNumber);
+            return end(body);
+        }
+    }
+
+    /**
+     * Appends loan records under one acquisition of the lock, so no other
+     * record and no snapshot position falls between them.
+     */
+    private long logLoans(byte type, int studentNumber, Collection<SpellBook> spellbooks) {
+        long sequence = 0;
+        synchronized (lock) {
+            for (SpellBook spellbook : spellbooks) {
+                sequence = logLoan(type, studentNumber, spellbook.getSerialNumber());
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Gets the sequence number of the last appended record.
+     * Committing it commits every record appended so far.
+     */
+    public long getLastSequence() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    /**
+     * Gets the position after the last appended record.
+     */
+    public Position getPosition() {
+        return new Position(id, getLastSequence());
+    }
+
+    /**
+     * Gets the position after the last appended record and passes it to an
+     * action that runs before any later record can be appended. A snapshot
+     * uses this to start copying at an exact position.
+     * @param atPosition Called with the position, with appends held off
+     * @return The action's result
+     */
+    public <T> T mark(Function<Position, T> atPosition) {
+        synchronized (lock) {
+            return atPosition.apply(new Position(id, appended));
+        }
+    }
+
+    /**
+     * Reserves room in the pending buffer for a record and its framing.
+     * Called with the lock held.
+     * @return The pending buffer, positioned at the start of the body
+     * @throws UnavailableException if the journal is closed or a write has failed
+     */
+    private ByteBuffer begin(int bodyLength) {
+        if (closed) {
+            throw new UnavailableException("Journal is closed", null);
+        }
+        if (failure != null) {
+            throw new UnavailableException("Journal write failed", failure);
+        }
+        int needed = 4 + bodyLength + 4;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.putInt(bodyLength);
+        bodyStart = pending.position();
+        return pending;
+    }
+
+    /**
+     * Appends the checksum of the body just written. Called with the lock held.
+     * @return The record's sequence number
+     */
+    private long end(ByteBuffer body) {
+        crc.reset();
+        crc.update(body.array(), body.arrayOffset() + bodyStart, body.position() - bodyStart);
+        body.putInt((int) crc.getValue());
+        return ++appended;
+    }
+
+    // ==================== Committing ====================
+
+    /**
+     * Makes a record durable according to the sync policy.
+     * With SyncPolicy.ALWAYS this returns once the record is on disk; otherwise
+     * once it has been handed to the OS.
+     * @param sequence The record's sequence number
+     * @throws UncheckedIOException if the journal cannot be written
+     */
+    public void commit(long sequence) {
+        try {
+            flush(sequence, policy == SyncPolicy.ALWAYS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Journal write failed", e);
+        }
+    }
+
+    /**
+     * Writes, and optionally forces, every record up to a sequence number.
+     * The first caller to find no flush running writes everything pending on
+     * behalf of the others, which wait for it and then return if it covered them.
+     */
+    private void flush(long sequence, boolean force) throws IOException {
+        ByteBuffer batch;
+        long upTo;
+        synchronized (lock) {
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if ((force ? synced : written) >= sequence) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                waitForFlush();
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            upTo = appended;
+        }
+
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (lock) {
+            batch.clear();
+            spare = batch;
+            flushing = false;
+            if (error != null) {
+                failure = error;
+            } else {
+                written = upTo;
+                if (force) {
+                    synced = upTo;
+                }
+            }
+            lock.notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void waitForFlush() throws IOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for journal commit", e);
+        }
+    }
+
+    private void syncPeriodically(long intervalMillis) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                flush(getLastSequence(), true);
+            } catch (IOException e) {
+                return; // the failure is reported to the next commit
+            }
+        }
+    }
+
+    /**
+     * Forces every appended record to disk and closes the file.
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+        }
+        if (syncThread != null) {
+            syncThread.interrupt();
+        }
+        try {
+            flush(getLastSequence(), true);
+        } finally {
+            synchronized (lock) {
+                closed = true;
+            }
+            channel.close();
+        }
+    }
+
+    // ==================== Replay ====================
+
+    /**
+     * Reads records from the start of a journal and applies those after a
+     * number of skipped ones to an Archive.
+     */
+    private static class Replay {
+        private final DataInputStream in;
+        private final long size;
+        private final Archive archive;
+        private final long skip; // records already in the Archive
+        private final CRC32C crc = new CRC32C();
+        private final List<SpellBook> spellbooks = new ArrayList<>(); // consecutive additions, added as a batch
+        private long end; // offset just past the last complete record
+
+        Replay(DataInputStream in, long size, Archive archive, long skip) {
+            this.in = in;
+            this.size = size;
+            this.archive = archive;
+            this.skip = skip;
+        }
+
+        /**
+         * Reads the records following the header.
+         * @return Number of complete records, applied or skipped
+         */
+        long run() throws IOException {
+            end = HEADER_SIZE;
+
+            long records = 0;
+            byte[] body = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || end + 4 + length + 4 > size) {
+                        break; // torn record
+                    }
+                    if (body.length < length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                    int checksum = in.readInt();
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (records >= skip) {
+                    try {
+                        apply(ByteBuffer.wrap(body, 0, length));
+                    } catch (RuntimeException e) {
+                        throw new IOException("Journal record " + (records + 1) + " cannot be replayed", e);
+                    }
+                }
+                end += 4 + length + 4;
+                records++;
+            }
+            addSpellbooks();
+            return records;
+        }
+
+        private void apply(ByteBuffer body) {
+            byte type = body.get();
+            if (type == ADD_SPELLBOOK) {
+                int serialNumber = body.getInt();
+                spellbooks.add(new SpellBook(serialNumber, getString(body), getString(body), getString(body)));
+                if (spellbooks.size() == REPLAY_BATCH_SIZE) {
+                    addSpellbooks();
+                }
+                return;
+            }
+
+            addSpellbooks();
+            switch (type) {
+                case ADD_STUDENT:
+                    int studentNumber = body.getInt();
+                    archive.restoreStudent(studentNumber, getString(body));
+                    break;
+                case RENT:
+                    archive.rentSpellbook(body.getInt(), body.getInt());
+                    break;
+                case RELINQUISH:
+                    archive.relinquishSpellbook(body.getInt(), body.getInt());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown journal record type " + type);
+            }
+        }
+
+        private void addSpellbooks() {
+            if (!spellbooks.isEmpty()) {
+                archive.addSpellbooks(spellbooks);
+                spellbooks.clear();
+            }
+        }
+
+        private static String getString(ByteBuffer body) {
+            int length = body.getInt();
+            String value = new String(body.array(), body.arrayOffset() + body.position(), length,
+                    StandardCharsets.UTF_8);
+            body.position(body.position() + length);
+            return value;
+        }
+    }
+}
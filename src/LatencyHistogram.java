@@ -0,0 +1,120 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size log-linear histogram of nanosecond latencies, in the style of
+ * HdrHistogram: every power of two is split into 16 buckets, so any recorded
+ * value is reported within 1/16 of its true size.
+ *
+ * Recording is one atomic increment and allocates nothing; readers see a
+ * slightly racy view while values are being recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one latency.
+     * @param nanos The latency in nanoseconds; negative values count as zero
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Gets the largest value that falls in a bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_COUNT + SUB_BITS - 1;
+        long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << (magnitude - SUB_BITS);
+        return lower + (1L << (magnitude - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recorded values.
+     * @param percentile The percentile, from 0 to 100
+     * @return The upper bound of the bucket holding the percentile, or 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the largest recorded value, to bucket precision.
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the mean of the recorded values, using each bucket's midpoint.
+     */
+    public double getMean() {
+        long[] snapshot = snapshot();
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] != 0) {
+                long upper = upperBoundOf(i);
+                long lower = i == 0 ? 0 : upperBoundOf(i - 1) + 1;
+                total += snapshot[i];
+                sum += snapshot[i] * ((lower + upper) / 2.0);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * An append-only list of ints used for rental histories: student numbers
+ * for a spellbook, serial numbers for a student.
+ * Entries are kept in a growable primitive array, so each one costs four
+ * bytes and is read without boxing. Appends are serialized; readers take
+ * no lock and see every entry appended before they read the size.
+ */
+public class RentalHistory {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private volatile int[] entries;
+    private volatile int size;
+
+    public RentalHistory() {
+        this.entries = new int[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    /**
+     * Creates a history holding existing entries, when restoring a snapshot.
+     * @param entries The entries in order of appending; the array is used as-is
+     */
+    RentalHistory(int[] entries) {
+        this.entries = entries;
+        this.size = entries.length;
+    }
+
+    /**
+     * Appends an entry.
+     * @param value The student or serial number
+     */
+    public synchronized void add(int value) {
+        int[] current = entries;
+        int n = size;
+        if (n == current.length) {
+            current = Arrays.copyOf(current, n + (n >> 1) + 1);
+            current[n] = value;
+            entries = current;
+        } else {
+            current[n] = value;
+        }
+        // Publish the size last so readers never see an unwritten entry
+        size = n + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets an entry by position.
+     * @param index The position, in order of appending
+     * @return The entry
+     */
+    public int get(int index) {
+        int n = size;
+        if (index < 0 || index >= n) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + n);
+        }
+        return entries[index];
+    }
+
+    /**
+     * Passes every entry to an action in order of appending.
+     * @param action The action
+     */
+    public void forEach(IntConsumer action) {
+        int n = size;
+        int[] current = entries;
+        for (int i = 0; i < n; i++) {
+            action.accept(current[i]);
+        }
+    }
+
+    /**
+     * Streams the entries in order of appending.
+     * @return A stream over the entries present when called
+     */
+    public IntStream stream() {
+        int n = size;
+        return Arrays.stream(entries, 0, n);
+    }
+
+    /**
+     * Copies the entries into a new array.
+     * @return Array of entries in order of appending
+     */
+    public int[] toArray() {
+        int n = size;
+        return Arrays.copyOf(entries, n);
+    }
+
+    /**
+     * Copies the first entries into a new array. Entries never change once
+     * appended, so a length read earlier still gives the same entries.
+     * @param length Number of entries, at most the size
+     * @return Array of the first entries in order of appending
+     */
+    public int[] toArray(int length) {
+        if (length > size) {
+            throw new IndexOutOfBoundsException("Length " + length + " exceeds size " + size);
+        }
+        return Arrays.copyOf(entries, length);
+    }
+}
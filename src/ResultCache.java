@@ -0,0 +1,128 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of rendered command output, shared by every session of
+ * an Archive, for read commands that are repeated between changes.
+ *
+ * Each entry remembers the Archive versions it was rendered at: the catalog
+ * version always, and the loan version only if the output shows
+ * availability. An entry is used only while those versions are unchanged,
+ * so a rental evicts LIST AVAILABLE but not LIST TYPES. Entries are evicted
+ * least recently used first once their total length exceeds the capacity.
+ */
+public class ResultCache {
+    /** Default capacity in characters of output. */
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * One rendered output and the versions it is valid for.
+     */
+    public static class Entry {
+        private final long catalogVersion;
+        private final long loanVersion; // -1 if the output does not show availability
+        private final String output;
+        private final boolean failed;
+
+        /**
+         * @param catalogVersion The catalog version read before rendering
+         * @param loanVersion The loan version read before rendering, or -1 if not shown
+         * @param output The rendered output
+         * @param failed Whether the command reported an error
+         */
+        public Entry(long catalogVersion, long loanVersion, String output, boolean failed) {
+            this.catalogVersion = catalogVersion;
+            this.loanVersion = loanVersion;
+            this.output = output;
+            this.failed = failed;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * Checks whether the output is still what the command would print.
+         * @param archive The Archive the output was rendered from
+         */
+        public boolean isCurrent(Archive archive) {
+            return catalogVersion == archive.getCatalogVersion()
+                    && (loanVersion < 0 || loanVersion == archive.getLoanVersion());
+        }
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size; // total output length of the entries, guarded by this
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The most characters of output to keep; larger outputs are never cached
+     */
+    public ResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the current output for a command.
+     * @param key The command and its arguments
+     * @param archive The Archive the command runs against
+     * @return The entry, or null if missing or stale
+     */
+    public synchronized Entry get(String key, Archive archive) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isCurrent(archive)) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the output of a command, evicting the least recently used entries to make room.
+     * @param key The command and its arguments
+     * @param entry The rendered output
+     */
+    public synchronized void put(String key, Entry entry) {
+        long length = entry.getOutput().length();
+        if (length > capacity) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        size += length;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (size > capacity) {
+            size -= eldest.next().getValue().getOutput().length();
+            eldest.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.getOutput().length();
+        }
+    }
+
+    /**
+     * Describes the cache for STATS.
+     * @return Entries, size and hit counts on one line
+     */
+    public synchronized String getSummary() {
+        return "Result cache: " + entries.size() + " entries, " + size + " characters, "
+                + hits + " hits, " + misses + " misses";
+    }
+}
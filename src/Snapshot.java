@@ -0,0 +1,422 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary image of the whole Archive state: spellbooks, students, current
+ * renters, both rental history directions, the next student number and the
+ * journal position the state was copied at.
+ *
+ * Strings are stored once in a dictionary and referenced by index, so the
+ * thousands of copies of a type or inventor cost four bytes each. A snapshot
+ * is written to a temporary file and renamed over the target, and is read
+ * back through a memory-mapped buffer.
+ *
+ * Layout (big-endian): int magic, int version, int next student number,
+ * long journal id and long journal sequence (both 0 without a journal);
+ * int string count, then each string as int length and UTF-8 bytes;
+ * int spellbook count, then for each in serial order: serial number, title,
+ * inventor and type string indexes, renter, history length and history;
+ * int student count, then for each in number order: student number, name
+ * string index, loan count and loan serial numbers in rental order, history
+ * length and history; int CRC32C of everything before it.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x48415331; // "HAS1"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int[] NO_INTS = new int[0];
+
+    final int nextStudentNumber;
+    final Journal.Position journalPosition; // the last journal record included
+    final SpellBook[] spellbooks; // sorted by serial number
+    final int[] renters; // renters[i] is the renter of spellbooks[i], or SpellBook.AVAILABLE
+    final int[][] spellbookHistories;
+    final int[] studentNumbers; // sorted
+    final String[] studentNames;
+    final int[][] loans; // serial numbers of each student's active loans in rental order
+    final int[][] studentHistories;
+
+    Snapshot(int nextStudentNumber, Journal.Position journalPosition, SpellBook[] spellbooks, int[] renters,
+             int[][] spellbookHistories, int[] studentNumbers, String[] studentNames, int[][] loans,
+             int[][] studentHistories) {
+        this.nextStudentNumber = nextStudentNumber;
+        this.journalPosition = journalPosition;
+        this.spellbooks = spellbooks;
+        this.renters = renters;
+        this.spellbookHistories = spellbookHistories;
+        this.studentNumbers = studentNumbers;
+        this.studentNames = studentNames;
+        this.loans = loans;
+        this.studentHistories = studentHistories;
+    }
+
+    // ==================== Writing ====================
+
+    /**
+     * Writes the snapshot to a file, replacing it atomically.
+     * @param path The snapshot file
+     * @throws IOException if the file cannot be written; the target is then left unchanged
+     */
+    public void write(Path path) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int[] bookStrings = new int[spellbooks.length * 3];
+        for (int i = 0; i < spellbooks.length; i++) {
+            bookStrings[3 * i] = intern(spellbooks[i].getTitle(), ids, strings);
+            bookStrings[3 * i + 1] = intern(spellbooks[i].getInventor(), ids, strings);
+            bookStrings[3 * i + 2] = intern(spellbooks[i].getType(), ids, strings);
+        }
+        int[] nameIds = new int[studentNames.length];
+        for (int i = 0; i < studentNames.length; i++) {
+            nameIds[i] = intern(studentNames[i], ids, strings);
+        }
+
+        Path temp = CollectionWriter.tempFileFor(path);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                Output out = new Output(channel);
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                out.putInt(nextStudentNumber);
+                out.putLong(journalPosition.journalId);
+                out.putLong(journalPosition.sequence);
+
+                out.putInt(strings.size());
+                for (String s : strings) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    out.putInt(bytes.length);
+                    out.put(bytes);
+                }
+
+                out.putInt(spellbooks.length);
+                for (int i = 0; i < spellbooks.length; i++) {
+                    out.putInt(spellbooks[i].getSerialNumber());
+                    out.putInt(bookStrings[3 * i]);
+                    out.putInt(bookStrings[3 * i + 1]);
+                    out.putInt(bookStrings[3 * i + 2]);
+                    out.putInt(renters[i]);
+                    out.putInts(spellbookHistories[i]);
+                }
+
+                out.putInt(studentNumbers.length);
+                for (int i = 0; i < studentNumbers.length; i++) {
+                    out.putInt(studentNumbers[i]);
+                    out.putInt(nameIds[i]);
+                    out.putInts(loans[i]);
+                    out.putInts(studentHistories[i]);
+                }
+
+                out.finish();
+                channel.force(true);
+            }
+            CollectionWriter.moveIntoPlace(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static int intern(String s, Map<String, Integer> ids, List<String> strings) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    /**
+     * Buffers big-endian output to a channel and checksums it.
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        /** Writes a length followed by the values. */
+        void putInts(int[] values) throws IOException {
+            putInt(values.length);
+            for (int value : values) {
+                putInt(value);
+            }
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, n);
+                offset += n;
+            }
+        }
+
+        /** Writes the checksum and everything still buffered. */
+        void finish() throws IOException {
+            flush();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // ==================== Reading ====================
+
+    /**
+     * Reads a snapshot file.
+     * @param path The snapshot file
+     * @return The snapshot, with new spellbooks that hold their renters and
+     *         histories but are not yet in any Archive
+     * @throws IOException if the file cannot be read, is not a snapshot or is damaged
+     */
+    public static Snapshot read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large to map: " + size + " bytes");
+            }
+            if (size < 16) {
+                throw new IOException("Not a snapshot file");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int end = (int) size - 4;
+            CRC32C crc = new CRC32C();
+            crc.update(in.duplicate().limit(end));
+            if (in.getInt(end) != (int) crc.getValue()) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            // Everything after the header is read within the checksummed body
+            in.limit(end);
+            return readBody(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot is truncated", e);
+        }
+    }
+
+    /**
+     * Reads the fields after the version, checking every count and reference
+     * so a damaged file fails with an IOException rather than a runtime one.
+     * Loans and histories are checked against the renters and histories of
+     * the spellbooks, which record the same loans from the other side; a
+     * spellbook's history is compared by its length and the sum of its entries.
+     */
+    private static Snapshot readBody(ByteBuffer in) throws IOException {
+        int nextStudentNumber = in.getInt();
+        long journalId = in.getLong();
+        long sequence = in.getLong();
+        if (sequence < 0 || (journalId == 0 && sequence != 0)) {
+            throw new IOException("Snapshot is damaged: bad journal position");
+        }
+        Journal.Position journalPosition = new Journal.Position(journalId, sequence);
+
+        String[] strings = new String[getCount(in, 4)];
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder(); // reports malformed input
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = getCount(in, 1);
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            in.get(bytes, 0, length);
+            strings[i] = isAscii(bytes, length)
+                    ? new String(bytes, 0, length, StandardCharsets.US_ASCII)
+                    : decoder.decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+        }
+
+        // Each distinct inventor and type is encoded once, not once per spellbook
+        int[] inventorCodes = new int[strings.length];
+        int[] typeCodes = new int[strings.length];
+        Arrays.fill(inventorCodes, -1);
+        Arrays.fill(typeCodes, -1);
+
+        int bookCount = getCount(in, 6 * 4);
+        SpellBook[] spellbooks = new SpellBook[bookCount];
+        int[] serials = new int[bookCount];
+        int[] renters = new int[bookCount];
+        int[][] spellbookHistories = new int[bookCount][];
+        for (int i = 0; i < bookCount; i++) {
+            serials[i] = in.getInt();
+            if (i > 0 && serials[i] <= serials[i - 1]) {
+                throw new IOException("Snapshot spellbooks are not in serial order");
+            }
+            String title = getString(in, strings);
+            int inventor = getCode(in, strings, inventorCodes, SpellBook.INVENTORS);
+            int type = getCode(in, strings, typeCodes, SpellBook.TYPES);
+            renters[i] = in.getInt();
+            spellbookHistories[i] = getInts(in);
+            spellbooks[i] = new SpellBook(serials[i], title, inventor, type, renters[i],
+                    new RentalHistory(spellbookHistories[i]));
+        }
+
+        int studentCount = getCount(in, 4 * 4);
+        int[] studentNumbers = new int[studentCount];
+        String[] studentNames = new String[studentCount];
+        int[][] loans = new int[studentCount][];
+        int[][] studentHistories = new int[studentCount][];
+        boolean[] onLoan = new boolean[bookCount];
+        int[] returns = new int[bookCount];
+        long[] returnedBy = new long[bookCount]; // sum of the numbers of the students who returned each spellbook
+        for (int i = 0; i < studentCount; i++) {
+            studentNumbers[i] = in.getInt();
+            if (studentNumbers[i] < 0 || studentNumbers[i] >= nextStudentNumber) {
+                throw new IOException("Snapshot is damaged: bad student number " + studentNumbers[i]);
+            }
+            if (i > 0 && studentNumbers[i] <= studentNumbers[i - 1]) {
+                throw new IOException("Snapshot students are not in number order");
+            }
+            studentNames[i] = getString(in, strings);
+            loans[i] = getInts(in);
+            for (int serial : loans[i]) {
+                int book = indexOf(serials, serial);
+                if (renters[book] != studentNumbers[i] || onLoan[book]) {
+                    throw new IOException("Snapshot is damaged: spellbook " + serial
+                            + " is not rented by student " + studentNumbers[i]);
+                }
+                onLoan[book] = true;
+            }
+            studentHistories[i] = getInts(in);
+            for (int serial : studentHistories[i]) {
+                int book = indexOf(serials, serial);
+                returns[book]++;
+                returnedBy[book] += studentNumbers[i];
+            }
+        }
+
+        if (in.hasRemaining()) {
+            throw new IOException("Snapshot has trailing data");
+        }
+        for (int i = 0; i < bookCount; i++) {
+            if (renters[i] != SpellBook.AVAILABLE && !onLoan[i]) {
+                throw new IOException("Snapshot is damaged: spellbook " + serials[i] + " is not held by its renter");
+            }
+            long sum = 0;
+            for (int renter : spellbookHistories[i]) {
+                sum += renter;
+            }
+            if (returns[i] != spellbookHistories[i].length || returnedBy[i] != sum) {
+                throw new IOException("Snapshot is damaged: histories of spellbook " + serials[i] + " differ");
+            }
+        }
+        return new Snapshot(nextStudentNumber, journalPosition, spellbooks, renters, spellbookHistories,
+                studentNumbers, studentNames, loans, studentHistories);
+    }
+
+    /**
+     * Reads a count of items, each taking at least a number of bytes.
+     * @throws IOException if the count is negative or the items cannot fit in the rest of the file
+     */
+    private static int getCount(ByteBuffer in, int minimumBytesEach) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minimumBytesEach) {
+            throw new IOException("Snapshot is damaged: bad count " + count);
+        }
+        return count;
+    }
+
+    private static boolean isAscii(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getString(ByteBuffer in, String[] strings) throws IOException {
+        int index = in.getInt();
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Snapshot is damaged: bad string index " + index);
+        }
+        return strings[index];
+    }
+
+    /**
+     * Reads a string index and gets the string's code in a symbol table.
+     * @param codes Codes already looked up, by string index, -1 if not yet
+     */
+    private static int getCode(ByteBuffer in, String[] strings, int[] codes, SymbolTable symbols) throws IOException {
+        int index = in.getInt();
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Snapshot is damaged: bad string index " + index);
+        }
+        if (codes[index] < 0) {
+            codes[index] = symbols.encode(strings[index]);
+        }
+        return codes[index];
+    }
+
+    private static int[] getInts(ByteBuffer in) throws IOException {
+        int length = getCount(in, 4);
+        if (length == 0) {
+            return NO_INTS;
+        }
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + length * 4);
+        return values;
+    }
+
+    /**
+     * Finds a spellbook of the snapshot by serial number.
+     * @param serials The spellbooks' serial numbers, sorted
+     * @return The spellbook's position in serials
+     */
+    private static int indexOf(int[] serials, int serial) throws IOException {
+        int index = Arrays.binarySearch(serials, serial);
+        if (index < 0) {
+            throw new IOException("Snapshot is damaged: unknown spellbook " + serial);
+        }
+        return index;
+    }
+}
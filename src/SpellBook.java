@@ -1,16 +1,39 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /**
  * Represents a spellbook in the Hogwarts Archive system.
+ * The current renter is a single int updated with compare-and-set, so
+ * concurrent rentals of the same book need no lock: exactly one wins.
+ * The inventor and type are stored as codes of shared symbol tables, so a
+ * large catalog keeps one copy of each distinct string.
  */
 public class SpellBook {
+    /** Renter value meaning the spellbook is on the shelf. */
+    public static final int AVAILABLE = -1;
+
+    /** Every inventor name, shared by all spellbooks. */
+    static final SymbolTable INVENTORS = new SymbolTable();
+    /** Every type, shared by all spellbooks. */
+    static final SymbolTable TYPES = new SymbolTable();
+
+    private static final VarHandle RENTER;
+
+    static {
+        try {
+            RENTER = MethodHandles.lookup().findVarHandle(SpellBook.class, "renter", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private int serialNumber;
     private String title;
-    private String inventor;
-    private String type;
-    private Integer currentRenter; // Student number, null if available
-    private List<Integer> rentalHistory; // List of student numbers
+    private int inventorCode; // code in INVENTORS
+    private int typeCode; // code in TYPES
+    private int ordinal; // dense index assigned by the Archive, -1 until added
+    private volatile int renter; // Student number, AVAILABLE if on the shelf
+    private RentalHistory rentalHistory; // Student numbers of past renters
 
     /**
      * Creates a new spellbook.
@@ -22,10 +45,31 @@ public class SpellBook {
     public SpellBook(int serialNumber, String title, String inventor, String type) {
         this.serialNumber = serialNumber;
         this.title = title;
-        this.inventor = inventor;
-        this.type = type;
-        this.currentRenter = null;
-        this.rentalHistory = new ArrayList<>();
+        this.inventorCode = INVENTORS.encode(inventor);
+        this.typeCode = TYPES.encode(type);
+        this.ordinal = -1;
+        this.renter = AVAILABLE;
+        this.rentalHistory = new RentalHistory();
+    }
+
+    /**
+     * Creates a spellbook read from a snapshot, with its symbol codes,
+     * renter and history already known.
+     * @param serialNumber The unique serial number
+     * @param title The spellbook title
+     * @param inventorCode The inventor's code in INVENTORS
+     * @param typeCode The type's code in TYPES
+     * @param renter The student number, or AVAILABLE
+     * @param rentalHistory The student numbers of past renters
+     */
+    SpellBook(int serialNumber, String title, int inventorCode, int typeCode, int renter, RentalHistory rentalHistory) {
+        this.serialNumber = serialNumber;
+        this.title = title;
+        this.inventorCode = inventorCode;
+        this.typeCode = typeCode;
+        this.ordinal = -1;
+        this.renter = renter;
+        this.rentalHistory = rentalHistory;
     }
 
     public int getSerialNumber() {
@@ -37,23 +81,75 @@ public class SpellBook {
     }
 
     public String getInventor() {
-        return inventor;
+        return INVENTORS.decode(inventorCode);
     }
 
     public String getType() {
-        return type;
+        return TYPES.decode(typeCode);
+    }
+
+    int getInventorCode() {
+        return inventorCode;
+    }
+
+    int getTypeCode() {
+        return typeCode;
+    }
+
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /**
+     * Sets the dense index used for rental history queries.
+     * Called by the Archive when the spellbook is added.
+     * @param ordinal The ordinal
+     */
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
     }
 
+    /**
+     * Gets the student currently renting this spellbook.
+     * @return The student number, or null if available
+     */
     public Integer getCurrentRenter() {
-        return currentRenter;
+        int holder = renter;
+        return holder == AVAILABLE ? null : holder;
     }
 
-    public List<Integer> getRentalHistory() {
+    /**
+     * Gets the student currently renting this spellbook without boxing.
+     * @return The student number, or AVAILABLE
+     */
+    public int getRenter() {
+        return renter;
+    }
+
+    public RentalHistory getRentalHistory() {
         return rentalHistory;
     }
 
     public boolean isAvailable() {
-        return currentRenter == null;
+        return renter == AVAILABLE;
+    }
+
+    /**
+     * Attempts to rent this spellbook to a student with a single compare-and-set.
+     * @param studentNumber The student number
+     * @return AVAILABLE if the rental succeeded, otherwise the current renter
+     */
+    public int tryRent(int studentNumber) {
+        while (true) {
+            if (RENTER.compareAndSet(this, AVAILABLE, studentNumber)) {
+                return AVAILABLE;
+            }
+            int holder = renter;
+            // The book may have been returned between the failed CAS and the read
+            if (holder != AVAILABLE) {
+                return holder;
+            }
+        }
     }
 
     /**
@@ -62,24 +158,32 @@ public class SpellBook {
      * @return true if successful, false if already rented
      */
     public boolean rent(int studentNumber) {
-        if (currentRenter != null) {
-            return false;
-        }
-        currentRenter = studentNumber;
-        return true;
+        return tryRent(studentNumber) == AVAILABLE;
+    }
+
+    /**
+     * Undoes a rental that was claimed with tryRent but never recorded,
+     * leaving no history entry.
+     * @param studentNumber The student number that claimed it
+     */
+    void cancelRent(int studentNumber) {
+        RENTER.compareAndSet(this, studentNumber, AVAILABLE);
     }
 
     /**
      * Returns this spellbook from the current renter.
+     * Only the current renter may return the book, so the Archive calls this
+     * once the loan has been removed from the student.
      * @return true if successful, false if not rented
      */
     public boolean returnBook() {
-        if (currentRenter == null) {
+        int holder = renter;
+        if (holder == AVAILABLE) {
             return false;
         }
-        rentalHistory.add(currentRenter);
-        currentRenter = null;
-        return true;
+        // Record history before releasing so the next renter's entry comes after it
+        rentalHistory.add(holder);
+        return RENTER.compareAndSet(this, holder, AVAILABLE);
     }
 
     /**
@@ -87,7 +191,7 @@ public class SpellBook {
      * Format: Title (Inventor)
      */
     public String getShortString() {
-        return title + " (" + inventor + ")";
+        return title + " (" + getInventor() + ")";
     }
 
     /**
@@ -97,12 +201,13 @@ public class SpellBook {
     public String getLongString() {
         StringBuilder sb = new StringBuilder();
         sb.append(serialNumber).append(": ").append(title)
-          .append(" (").append(inventor).append(", ").append(type).append(")\n");
+          .append(" (").append(getInventor()).append(", ").append(getType()).append(")\n");
 
-        if (currentRenter == null) {
+        int holder = renter;
+        if (holder == AVAILABLE) {
             sb.append("Currently available.");
         } else {
-            sb.append("Rented by: ").append(currentRenter).append(".");
+            sb.append("Rented by: ").append(holder).append(".");
         }
 
         return sb.toString();
@@ -114,7 +219,7 @@ public class SpellBook {
      * @return true if they are copies
      */
     public boolean isCopyOf(SpellBook other) {
-        return this.title.equals(other.title) && this.inventor.equals(other.inventor);
+        return this.inventorCode == other.inventorCode && this.title.equals(other.title);
     }
 
     @Override
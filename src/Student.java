@@ -1,14 +1,27 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Represents a student account in the Hogwarts Archive system.
+ * Rental methods are synchronized, getters return copies and the rental
+ * history is append-only, so the account can be read while the Archive
+ * updates it from another thread.
  */
 public class Student {
+    private static final int[] NO_ORDINALS = new int[0];
+    private static final int MERGE_THRESHOLD = 16; // pending ordinals always allowed before a merge
+
     private int studentNumber;
     private String name;
-    private List<SpellBook> currentlyRenting;
-    private List<SpellBook> rentalHistory;
+    private Set<SpellBook> currentlyRenting; // active loans in rental order
+    private RentalHistory rentalHistory; // Serial numbers of returned spellbooks
+    private volatile int[] historyOrdinals; // distinct ordinals of returned spellbooks, sorted, replaced on merge
+    private int[] pendingOrdinals = NO_ORDINALS; // ordinals returned since the last merge, guarded by this
+    private volatile int pendingCount; // entries of pendingOrdinals, published after each append
 
     /**
      * Creates a new student with the given number and name.
@@ -18,8 +31,25 @@ public class Student {
     public Student(int studentNumber, String name) {
         this.studentNumber = studentNumber;
         this.name = name;
-        this.currentlyRenting = new ArrayList<>();
-        this.rentalHistory = new ArrayList<>();
+        this.currentlyRenting = new LinkedHashSet<>();
+        this.rentalHistory = new RentalHistory();
+        this.historyOrdinals = NO_ORDINALS;
+    }
+
+    /**
+     * Creates a student read from a snapshot.
+     * @param studentNumber The unique student number
+     * @param name The student's name
+     * @param loans The active loans in rental order, used as-is
+     * @param rentalHistory Serial numbers of returned spellbooks
+     * @param historyOrdinals Sorted distinct ordinals of the returned spellbooks
+     */
+    Student(int studentNumber, String name, Set<SpellBook> loans, RentalHistory rentalHistory, int[] historyOrdinals) {
+        this.studentNumber = studentNumber;
+        this.name = name;
+        this.currentlyRenting = loans;
+        this.rentalHistory = rentalHistory;
+        this.historyOrdinals = historyOrdinals;
     }
 
     public int getStudentNumber() {
@@ -30,19 +60,44 @@ public class Student {
         return name;
     }
 
-    public List<SpellBook> getCurrentlyRenting() {
-        return currentlyRenting;
+    public synchronized List<SpellBook> getCurrentlyRenting() {
+        return new ArrayList<>(currentlyRenting);
+    }
+
+    /**
+     * Checks if the student currently holds a spellbook.
+     * @param spellbook The spellbook
+     * @return true if it is an active loan
+     */
+    public synchronized boolean isRenting(SpellBook spellbook) {
+        return currentlyRenting.contains(spellbook);
     }
 
-    public List<SpellBook> getRentalHistory() {
+    public RentalHistory getRentalHistory() {
         return rentalHistory;
     }
 
     /**
-     * Adds a spellbook to the currently renting list.
+     * Gets the ordinals of every spellbook in the rental history, each once.
+     * Returns since the last call are first merged in under the lock. The
+     * array is never modified after it is returned; a later merge replaces it.
+     * @return Sorted ordinals, not to be modified
+     */
+    public int[] getHistoryOrdinals() {
+        if (pendingCount == 0) {
+            return historyOrdinals;
+        }
+        synchronized (this) {
+            mergePendingOrdinals();
+            return historyOrdinals;
+        }
+    }
+
+    /**
+     * Adds a spellbook to the active loans.
      * @param spellbook The spellbook to rent
      */
-    public void rentSpellbook(SpellBook spellbook) {
+    public synchronized void rentSpellbook(SpellBook spellbook) {
         currentlyRenting.add(spellbook);
     }
 
@@ -51,9 +106,14 @@ public class Student {
      * @param spellbook The spellbook to return
      * @return true if successfully returned, false otherwise
      */
-    public boolean returnSpellbook(SpellBook spellbook) {
+    public synchronized boolean returnSpellbook(SpellBook spellbook) {
         if (currentlyRenting.remove(spellbook)) {
-            rentalHistory.add(spellbook);
+            rentalHistory.add(spellbook.getSerialNumber());
+            addPendingOrdinal(spellbook.getOrdinal());
+            // Merging once the pending ordinals outnumber the merged ones keeps each return amortized O(log n)
+            if (pendingCount > Math.max(MERGE_THRESHOLD, historyOrdinals.length)) {
+                mergePendingOrdinals();
+            }
             return true;
         }
         return false;
@@ -61,15 +121,63 @@ public class Student {
 
     /**
      * Returns all currently rented spellbooks and adds them to history.
-     * @return List of returned spellbooks
+     * The loan set is handed back as-is and replaced with an empty one, and
+     * the returned ordinals are merged into the history ordinals at once.
+     * @return The returned spellbooks in rental order
      */
-    public List<SpellBook> returnAllSpellbooks() {
-        List<SpellBook> returned = new ArrayList<>(currentlyRenting);
-        rentalHistory.addAll(currentlyRenting);
-        currentlyRenting.clear();
+    public synchronized Collection<SpellBook> returnAllSpellbooks() {
+        Set<SpellBook> returned = currentlyRenting;
+        currentlyRenting = new LinkedHashSet<>();
+        for (SpellBook spellbook : returned) {
+            rentalHistory.add(spellbook.getSerialNumber());
+            addPendingOrdinal(spellbook.getOrdinal());
+        }
+        mergePendingOrdinals();
         return returned;
     }
 
+    /**
+     * Appends an ordinal to the pending ordinals, unless it has already been
+     * merged. Called with the lock held.
+     */
+    private void addPendingOrdinal(int ordinal) {
+        if (Arrays.binarySearch(historyOrdinals, ordinal) >= 0) {
+            return;
+        }
+        int n = pendingCount;
+        if (n == pendingOrdinals.length) {
+            pendingOrdinals = Arrays.copyOf(pendingOrdinals, n + (n >> 1) + 1);
+        }
+        pendingOrdinals[n] = ordinal;
+        pendingCount = n + 1;
+    }
+
+    /**
+     * Sorts the pending ordinals and merges them into a new copy of the
+     * history ordinals, dropping duplicates. Called with the lock held;
+     * readers keep the old array.
+     */
+    private void mergePendingOrdinals() {
+        int count = pendingCount;
+        if (count == 0) {
+            return;
+        }
+        int[] pending = pendingOrdinals;
+        Arrays.sort(pending, 0, count);
+        int[] current = historyOrdinals;
+        int[] merged = new int[current.length + count];
+        int n = 0;
+        for (int i = 0, j = 0; i < current.length || j < count; ) {
+            int next = j == count || (i < current.length && current[i] <= pending[j]) ? current[i++] : pending[j++];
+            if (n == 0 || merged[n - 1] != next) {
+                merged[n++] = next;
+            }
+        }
+        historyOrdinals = n == merged.length ? merged : Arrays.copyOf(merged, n);
+        // Cleared after publishing, so a reader that sees no pending ordinals finds them merged
+        pendingCount = 0;
+    }
+
     @Override
     public String toString() {
         return studentNumber + ": " + name;
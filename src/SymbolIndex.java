@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups spellbooks by a dictionary-encoded field such as the type or the
+ * inventor. Spellings that differ only in case share a group, matching the
+ * equalsIgnoreCase semantics of the TYPE and INVENTOR commands.
+ *
+ * Spellbooks reach their group by code through an array, so adding and
+ * renting never compare strings; commands look groups up by name.
+ */
+public class SymbolIndex {
+    /**
+     * The spellbooks sharing one value, ignoring case.
+     */
+    public static class Group {
+        private volatile ConcurrentSkipListMap<Integer, Boolean> serials = new ConcurrentSkipListMap<>();
+        private final AtomicInteger rented = new AtomicInteger();
+
+        /** @return Serial numbers of the spellbooks in the group, sorted */
+        public NavigableSet<Integer> getSerials() {
+            return serials.navigableKeySet();
+        }
+
+        /**
+         * Adds a spellbook to the group.
+         * @param serial The spellbook's serial number
+         */
+        public void addSerial(int serial) {
+            serials.put(serial, Boolean.TRUE);
+        }
+
+        /**
+         * Fills a group that is still empty in one linear pass, when restoring
+         * a snapshot.
+         * @param sorted The serial numbers as keys, in ascending order
+         */
+        void restoreSerials(SortedMap<Integer, Boolean> sorted) {
+            serials = new ConcurrentSkipListMap<>(sorted);
+        }
+
+        /** @return Number of spellbooks in the group currently rented */
+        public AtomicInteger getRented() {
+            return rented;
+        }
+    }
+
+    private final SymbolTable symbols;
+    private final Map<String, Group> byName = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>(); // distinct spellings in alphabetical order
+    private volatile Group[] byCode = new Group[16]; // code -> group, null for codes not in this index
+
+    /**
+     * Creates an empty index over the codes of a symbol table.
+     * @param symbols The table the codes come from
+     */
+    public SymbolIndex(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Gets the group of a code, adding the code to the index if it is new.
+     * @param code A code of the symbol table
+     * @return The group
+     */
+    public Group add(int code) {
+        Group group = get(code);
+        return group != null ? group : addSlow(code);
+    }
+
+    private synchronized Group addSlow(int code) {
+        Group[] groups = byCode;
+        if (code < groups.length && groups[code] != null) {
+            return groups[code];
+        }
+        String name = symbols.decode(code);
+        Group group = byName.computeIfAbsent(name, k -> new Group());
+        names.add(name);
+        if (code >= groups.length) {
+            groups = Arrays.copyOf(groups, Math.max(code + 1, groups.length * 2));
+        }
+        groups[code] = group;
+        byCode = groups;
+        return group;
+    }
+
+    /**
+     * Gets the group of a code that has been added.
+     * @param code A code of the symbol table
+     * @return The group, or null if the code has not been added
+     */
+    public Group get(int code) {
+        Group[] groups = byCode;
+        return code < groups.length ? groups[code] : null;
+    }
+
+    /**
+     * Looks up a group by name.
+     * @param name The value (case-insensitive)
+     * @return The group, or null if no spellbook has the value
+     */
+    public Group find(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Gets every distinct spelling added, in alphabetical order.
+     * @return List of names
+     */
+    public List<String> getNames() {
+        return new ArrayList<>(names);
+    }
+}
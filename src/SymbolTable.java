@@ -0,0 +1,56 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only dictionary of strings, each stored once and identified by a
+ * small int code. Codes are dense, start at 0 and never change, so they can
+ * index arrays.
+ *
+ * Encoding a known string is one hash lookup and decoding is one array read;
+ * only new strings take the lock.
+ */
+public class SymbolTable {
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] symbols = new String[16];
+    private int size; // guarded by this
+
+    /**
+     * Gets the code of a string, adding it if it is new.
+     * @param symbol The string
+     * @return Its code
+     */
+    public int encode(String symbol) {
+        Integer code = codes.get(symbol);
+        return code != null ? code : add(symbol);
+    }
+
+    private synchronized int add(String symbol) {
+        Integer code = codes.get(symbol);
+        if (code != null) {
+            return code;
+        }
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        // Stored before the code is published, so whoever sees the code can decode it
+        symbols[size] = symbol;
+        codes.put(symbol, size);
+        return size++;
+    }
+
+    /**
+     * Gets the string of a code returned by encode.
+     * @param code The code
+     * @return The string
+     */
+    public String decode(int code) {
+        return symbols[code];
+    }
+
+    /**
+     * Gets the number of distinct strings encoded so far.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
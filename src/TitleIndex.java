@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An inverted index of spellbook titles for the SEARCH command.
+ *
+ * Titles are split into lower-case words. Each distinct title gets a dense
+ * id, and each word keeps the ids of the titles containing it in ascending
+ * order. The vocabulary is also kept sorted, so a prefix is the range of
+ * words starting with it. Copies share their title's entry, so a catalog of
+ * a million spellbooks indexes only its distinct titles.
+ *
+ * Results are ranked without sorting the matches: every match falls in a
+ * bucket of (terms missed, title length), and a page is filled by visiting
+ * the buckets in order and each bucket's titles in id order.
+ *
+ * Not thread-safe: the Archive adds under its catalog write lock and
+ * searches under the read lock.
+ */
+public class TitleIndex {
+    private static final int MAX_TERMS = 32;
+    private static final int MAX_WORDS = 255;
+    private static final int BUCKETS = (MAX_TERMS + 1) << 8;
+
+    /**
+     * One page of ranked search results.
+     */
+    public static class Page {
+        private final List<SpellBook> spellbooks;
+        private final long total;
+
+        Page(List<SpellBook> spellbooks, long total) {
+            this.spellbooks = spellbooks;
+            this.total = total;
+        }
+
+        /** @return The spellbooks on the page, in rank order */
+        public List<SpellBook> getSpellbooks() {
+            return spellbooks;
+        }
+
+        /** @return Number of spellbooks matching the search, on every page */
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * A growable array of ints, ascending when appended in order.
+     */
+    private static class Postings {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private final Map<String, Integer> titleIds = new HashMap<>(); // exact title -> id
+    private final Map<String, Postings> words = new HashMap<>(); // word -> ids of titles containing it
+    private final NavigableSet<String> vocabulary = new TreeSet<>(); // every word, for prefix ranges
+    private SpellBook[][] copies = new SpellBook[16][]; // title id -> spellbooks in serial order
+    private int[] copyCounts = new int[16];
+    private byte[] wordCounts = new byte[16]; // title id -> number of words, capped at MAX_WORDS
+    private int titleCount;
+
+    /**
+     * Adds a spellbook, indexing its title if no copy has been added before.
+     * @param spellbook The spellbook
+     */
+    public void add(SpellBook spellbook) {
+        Integer id = titleIds.get(spellbook.getTitle());
+        if (id == null) {
+            id = addTitle(spellbook.getTitle());
+        }
+        addCopy(id, spellbook);
+    }
+
+    private int addTitle(String title) {
+        int id = titleCount++;
+        if (id == copies.length) {
+            int capacity = id * 2;
+            copies = Arrays.copyOf(copies, capacity);
+            copyCounts = Arrays.copyOf(copyCounts, capacity);
+            wordCounts = Arrays.copyOf(wordCounts, capacity);
+        }
+        titleIds.put(title, id);
+        Set<String> titleWords = tokenize(title);
+        wordCounts[id] = (byte) Math.min(titleWords.size(), MAX_WORDS);
+        for (String word : titleWords) {
+            Postings postings = words.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                words.put(word, postings);
+                vocabulary.add(word);
+            }
+            postings.add(id);
+        }
+        return id;
+    }
+
+    /**
+     * Inserts a copy in serial order; copies usually arrive in order, so this
+     * is an append.
+     */
+    private void addCopy(int id, SpellBook spellbook) {
+        SpellBook[] list = copies[id];
+        int n = copyCounts[id];
+        if (list == null) {
+            list = new SpellBook[1];
+        } else if (n == list.length) {
+            list = Arrays.copyOf(list, n + (n >> 1) + 1);
+        }
+        int i = n;
+        while (i > 0 && list[i - 1].getSerialNumber() > spellbook.getSerialNumber()) {
+            list[i] = list[i - 1];
+            i--;
+        }
+        list[i] = spellbook;
+        copies[id] = list;
+        copyCounts[id] = n + 1;
+    }
+
+    /**
+     * Finds the spellbooks whose titles contain the words of a query; the
+     * last word also matches as a prefix, so results appear while typing.
+     * Titles matching more words rank first, then shorter titles, then titles
+     * in the order they entered the catalog; copies follow in serial order.
+     * @param query The search text
+     * @param offset Number of ranked spellbooks to skip
+     * @param limit Maximum number of spellbooks to return
+     * @return The page, empty if nothing matches
+     */
+    public Page search(String query, long offset, int limit) {
+        List<String> terms = new ArrayList<>(tokenize(query));
+        if (terms.isEmpty() || titleCount == 0) {
+            return new Page(new ArrayList<>(), 0);
+        }
+        if (terms.size() > MAX_TERMS) {
+            terms = terms.subList(0, MAX_TERMS);
+        }
+
+        // Per title: the last term that matched it in the high bits, matched terms in the low byte
+        int[] state = new int[titleCount];
+        int[] matched = new int[16];
+        int matchCount = 0;
+        for (int t = 0; t < terms.size(); t++) {
+            int stamp = (t + 1) << 8;
+            for (Postings postings : postingsOf(terms.get(t), t == terms.size() - 1)) {
+                for (int i = 0; i < postings.size; i++) {
+                    int id = postings.ids[i];
+                    int s = state[id];
+                    if ((s & ~0xFF) == stamp) {
+                        continue; // already counted for this term through another word
+                    }
+                    if (s == 0) {
+                        if (matchCount == matched.length) {
+                            matched = Arrays.copyOf(matched, matchCount * 2);
+                        }
+                        matched[matchCount++] = id;
+                    }
+                    state[id] = stamp | ((s & 0xFF) + 1);
+                }
+            }
+        }
+
+        long[] bucketCopies = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < matchCount; i++) {
+            int id = matched[i];
+            bucketCopies[bucketOf(id, state)] += copyCounts[id];
+            total += copyCounts[id];
+        }
+        // Put the matches in id order: sort a few, or collect many with one pass over the titles
+        if (matchCount < titleCount >>> 6) {
+            Arrays.sort(matched, 0, matchCount);
+        } else {
+            matchCount = 0;
+            for (int id = 0; id < titleCount; id++) {
+                if (state[id] != 0) {
+                    matched[matchCount++] = id;
+                }
+            }
+        }
+
+        List<SpellBook> page = new ArrayList<>(Math.min(limit, 64));
+        long skip = offset;
+        for (int bucket = 0; bucket < BUCKETS && page.size() < limit; bucket++) {
+            if (skip >= bucketCopies[bucket]) {
+                skip -= bucketCopies[bucket];
+                continue;
+            }
+            for (int i = 0; i < matchCount && page.size() < limit; i++) {
+                int id = matched[i];
+                if (bucketOf(id, state) != bucket) {
+                    continue;
+                }
+                int n = copyCounts[id];
+                if (skip >= n) {
+                    skip -= n;
+                    continue;
+                }
+                SpellBook[] list = copies[id];
+                for (int j = (int) skip; j < n && page.size() < limit; j++) {
+                    page.add(list[j]);
+                }
+                skip = 0;
+            }
+        }
+        return new Page(page, total);
+    }
+
+    /**
+     * Gets the postings of a query term: one word, or every word it prefixes.
+     */
+    private List<Postings> postingsOf(String term, boolean prefix) {
+        if (!prefix) {
+            Postings postings = words.get(term);
+            return postings == null ? List.of() : List.of(postings);
+        }
+        List<Postings> result = new ArrayList<>();
+        for (String word : vocabulary.subSet(term, true, term + Character.MAX_VALUE, false)) {
+            result.add(words.get(word));
+        }
+        return result;
+    }
+
+    /**
+     * Ranks a matched title: fewer missed terms first, then fewer words.
+     */
+    private int bucketOf(int id, int[] state) {
+        return (MAX_TERMS - (state[id] & 0xFF)) << 8 | (wordCounts[id] & 0xFF);
+    }
+
+    /**
+     * Splits text into distinct lower-case words of letters and digits, in order.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> result = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+}
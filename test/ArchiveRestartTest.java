@@ -0,0 +1,257 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Restarts an Archive from its journal, its snapshot, or both, and checks
+ * that loans and histories come back exactly once.
+ */
+class ArchiveRestartTest {
+    private static final String COLLECTION = "../data/spellbooks.csv";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void journalAloneReplaysEveryChange() throws IOException {
+        Archive archive = new Archive();
+        archive.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+        archive.addCollectionFromCSV(COLLECTION);
+        int student = archive.addStudent("Harry").getStudentNumber();
+        archive.rentSpellbook(student, 111112);
+        archive.relinquishSpellbook(student, 111112);
+        archive.rentSpellbook(student, 111113);
+        archive.closeJournal();
+
+        Archive restored = new Archive();
+        assertEquals(17 + 1 + 3, restored.openJournal(journal(), Journal.SyncPolicy.NEVER, 10));
+        assertLoans(restored, student);
+        restored.closeJournal();
+    }
+
+    @Test
+    void snapshotAndJournalReplayOnlyLaterChanges() throws IOException {
+        Archive archive = new Archive();
+        archive.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+        archive.addCollectionFromCSV(COLLECTION);
+        int student = archive.addStudent("Harry").getStudentNumber();
+        archive.rentSpellbook(student, 111112);
+        archive.rentSpellbook(student, 111113);
+        archive.relinquishSpellbook(student, 111112);
+        assertEquals("Success.", archive.saveSnapshot(snapshot()));
+        archive.rentSpellbook(student, 111114);
+        archive.relinquishSpellbook(student, 111114);
+        archive.closeJournal();
+
+        Archive restored = new Archive();
+        restored.loadSnapshot(snapshot());
+        assertEquals(2, restored.openJournal(journal(), Journal.SyncPolicy.NEVER, 10));
+
+        assertEquals(List.of(restored.getSpellbook(111113)), restored.getStudent(student).getCurrentlyRenting());
+        assertEquals(student, restored.getSpellbook(111113).getRenter());
+        assertArrayEquals(new int[] {111112, 111114}, restored.getStudent(student).getRentalHistory().toArray());
+        assertArrayEquals(new int[] {student}, restored.getSpellbook(111112).getRentalHistory().toArray());
+        assertEquals("Success.", restored.relinquishSpellbook(student, 111113));
+        restored.closeJournal();
+    }
+
+    @Test
+    void snapshotRefusesJournalItWasNotSavedWith() throws IOException {
+        Archive archive = new Archive();
+        archive.addCollectionFromCSV(COLLECTION);
+        archive.addStudent("Harry");
+        archive.saveSnapshot(snapshot());
+
+        Archive other = new Archive();
+        other.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+        other.addStudent("Ron");
+        other.closeJournal();
+
+        Archive restored = new Archive();
+        restored.loadSnapshot(snapshot());
+        assertThrows(IOException.class, () -> restored.openJournal(journal(), Journal.SyncPolicy.NEVER, 10));
+    }
+
+    @Test
+    void snapshotsTakenDuringRentalsReplayToTheSameState() throws Exception {
+        Archive archive = new Archive();
+        archive.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+        List<SpellBook> books = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            books.add(new SpellBook(200000 + i, "Title " + i, "Inventor " + i % 5, "Type " + i % 3));
+        }
+        archive.addSpellbooks(books);
+        for (int i = 0; i < 16; i++) {
+            archive.addStudent("Student " + i);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread worker = new Thread(() -> {
+                Random random = new Random(Thread.currentThread().getId());
+                while (running.get()) {
+                    int student = 100000 + random.nextInt(16);
+                    int serial = 200000 + random.nextInt(64);
+                    switch (random.nextInt(6)) {
+                        case 0:
+                        case 1:
+                            archive.rentSpellbook(student, serial);
+                            break;
+                        case 2:
+                        case 3:
+                            archive.relinquishSpellbook(student, serial);
+                            break;
+                        case 4:
+                            archive.rentSpellbooks(student, new int[] {serial, serial + 1 - serial % 2}, false);
+                            break;
+                        default:
+                            archive.relinquishAllSpellbooks(student);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        List<String> snapshots = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(20);
+            String snapshot = dir.resolve("archive" + i + ".snapshot").toString();
+            assertEquals("Success.", archive.saveSnapshot(snapshot));
+            snapshots.add(snapshot);
+        }
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        archive.closeJournal();
+
+        String expected = describe(archive);
+        for (String snapshot : snapshots) {
+            Archive restored = new Archive();
+            restored.loadSnapshot(snapshot);
+            restored.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+            restored.closeJournal();
+            assertEquals(expected, describe(restored), snapshot);
+        }
+    }
+
+    @Test
+    void unknownJournalRecordFailsWithIOException() throws IOException {
+        Archive archive = new Archive();
+        archive.openJournal(journal(), Journal.SyncPolicy.NEVER, 10);
+        archive.addStudent("Harry");
+        archive.closeJournal();
+
+        // A record with a valid checksum but a type no version writes
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + 4);
+        CRC32C crc = new CRC32C();
+        crc.update(new byte[] {99});
+        record.putInt(1).put((byte) 99).putInt((int) crc.getValue());
+        Files.write(Path.of(journal()), record.array(), StandardOpenOption.APPEND);
+
+        assertThrows(IOException.class, () -> new Archive().openJournal(journal(), Journal.SyncPolicy.NEVER, 10));
+    }
+
+    @Test
+    void damagedSnapshotFailsWithIOException() throws IOException {
+        Archive archive = new Archive();
+        archive.addCollectionFromCSV(COLLECTION);
+        int[] students = {archive.addStudent("Harry").getStudentNumber(), archive.addStudent("Ron").getStudentNumber()};
+        // Every spellbook is rented or returned, so each serial number is also recorded by a student
+        List<SpellBook> spellbooks = archive.getAllSpellbooks();
+        for (int i = 0; i < spellbooks.size(); i++) {
+            int serial = spellbooks.get(i).getSerialNumber();
+            archive.rentSpellbook(students[i % 2], serial);
+            if (i % 3 != 0) {
+                archive.relinquishSpellbook(students[i % 2], serial);
+            }
+        }
+        archive.saveSnapshot(snapshot());
+        String expected = describe(archive);
+        byte[] saved = Files.readAllBytes(Path.of(snapshot()));
+
+        // Overwrite each int of the body, keeping the checksum valid
+        for (int offset = 8; offset + 8 <= saved.length; offset += 4) {
+            for (int value : new int[] {-1, Integer.MAX_VALUE}) {
+                ByteBuffer damaged = ByteBuffer.wrap(saved.clone());
+                damaged.putInt(offset, value);
+                CRC32C crc = new CRC32C();
+                crc.update(damaged.array(), 0, saved.length - 4);
+                damaged.putInt(saved.length - 4, (int) crc.getValue());
+                Files.write(Path.of(snapshot()), damaged.array());
+                Archive loaded = new Archive();
+                try {
+                    loaded.loadSnapshot(snapshot());
+                } catch (IOException e) {
+                    continue;
+                }
+                // Only fields outside the state, such as the journal position, may load without an error
+                assertEquals(expected, describe(loaded), "loaded with " + value + " at offset " + offset);
+            }
+        }
+    }
+
+    @Test
+    void truncatedSnapshotFailsWithIOException() throws IOException {
+        Archive archive = new Archive();
+        archive.addCollectionFromCSV(COLLECTION);
+        archive.saveSnapshot(snapshot());
+        byte[] saved = Files.readAllBytes(Path.of(snapshot()));
+
+        Files.write(Path.of(snapshot()), Arrays.copyOf(saved, saved.length / 2));
+        assertThrows(IOException.class, () -> new Archive().loadSnapshot(snapshot()));
+    }
+
+    /**
+     * Lists every spellbook's renter and history and every student's loans
+     * and histories.
+     */
+    private static String describe(Archive archive) {
+        StringBuilder state = new StringBuilder();
+        for (SpellBook spellbook : archive.getAllSpellbooks()) {
+            state.append(spellbook.getSerialNumber()).append(' ').append(spellbook.getTitle())
+                    .append(" renter ").append(spellbook.getRenter())
+                    .append(" history ").append(Arrays.toString(spellbook.getRentalHistory().toArray())).append('\n');
+        }
+        for (int i = 0; i < archive.getStudentCount(); i++) {
+            Student student = archive.getStudent(100000 + i);
+            state.append(student).append(" loans ");
+            for (SpellBook spellbook : student.getCurrentlyRenting()) {
+                state.append(spellbook.getSerialNumber()).append(' ');
+            }
+            state.append("history ").append(Arrays.toString(student.getRentalHistory().toArray()))
+                    .append(" distinct ").append(Arrays.toString(student.getHistoryOrdinals())).append('\n');
+        }
+        return state.append(archive.getRentedCount()).append(" rented, ")
+                .append(archive.getHistoryEntryCount()).append(" returns").toString();
+    }
+
+    private static void assertLoans(Archive archive, int student) {
+        assertEquals(List.of(archive.getSpellbook(111113)), archive.getStudent(student).getCurrentlyRenting());
+        assertArrayEquals(new int[] {111112}, archive.getStudent(student).getRentalHistory().toArray());
+        assertEquals(16, archive.getAvailableCount());
+    }
+
+    private String journal() {
+        return dir.resolve("archive.journal").toString();
+    }
+
+    private String snapshot() {
+        return dir.resolve("archive.snapshot").toString();
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs RENT and RELINQUISH commands through the command layer and checks
+ * which of them are taken as batches.
+ */
+class HogwartsArchiveTest {
+    private static final String COLLECTION = "../data/spellbooks.csv";
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private Archive archive;
+    private HogwartsArchive session;
+    private int student;
+
+    @BeforeEach
+    void setUp() {
+        archive = new Archive();
+        archive.addCollectionFromCSV(COLLECTION);
+        student = archive.addStudent("Harry").getStudentNumber();
+        session = new HogwartsArchive(archive, new PrintStream(output, true, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rentWithExtraWordsRentsOneSpellbook() {
+        assertEquals(List.of("Success."), run("RENT " + student + " 111112 please"));
+        assertEquals(List.of(archive.getSpellbook(111112)), archive.getStudent(student).getCurrentlyRenting());
+    }
+
+    @Test
+    void rentWithSerialNumbersRentsEach() {
+        assertEquals(List.of("111112: Success.", "111113: Success."), run("RENT " + student + " 111112 111113"));
+        assertEquals(List.of(archive.getSpellbook(111112), archive.getSpellbook(111113)),
+                archive.getStudent(student).getCurrentlyRenting());
+    }
+
+    @Test
+    void relinquishWithExtraWordsReturnsOneSpellbook() {
+        run("RENT " + student + " 111112 111113");
+        assertEquals(List.of("Success."), run("RELINQUISH " + student + " 111112 now"));
+        assertEquals(List.of(archive.getSpellbook(111113)), archive.getStudent(student).getCurrentlyRenting());
+    }
+
+    private List<String> run(String command) {
+        output.reset();
+        session.processCommand(command);
+        return output.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+}